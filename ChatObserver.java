@@ -1,161 +1,2849 @@
-import java.util.*;
-
-// Observer pattern: ChatRoom notifies users when a new message is posted
-interface ChatObserver {
-    void update(String message);
-}
-
-// User class, implementing the ChatObserver interface
-class User implements ChatObserver {
-    private String name;
-
-    public User(String name) {
-        this.name = name;
-    }
-
-    @Override
-    public void update(String message) {
-        System.out.println(name + " received: " + message);
-    }
-
-    public String getName() {
-        return name;
-    }
-
-    // Simulate sending a message
-    public void sendMessage(ChatRoom chatRoom, String message) {
-        chatRoom.sendMessage(this, message);
-    }
-}
-
-// ChatRoom acts as the subject in the observer pattern
-class ChatRoom {
-    private String roomId;
-    private List<User> users = new ArrayList<>();
-    private List<String> messageHistory = new ArrayList<>();
-
-    public ChatRoom(String roomId) {
-        this.roomId = roomId;
-    }
-
-    // Register a user in the chat room
-    public void join(User user) {
-        users.add(user);
-        notifyAllUsers(user.getName() + " has joined the chat room.");
-        displayActiveUsers();
-    }
-
-    // Unregister a user from the chat room
-    public void leave(User user) {
-        users.remove(user);
-        notifyAllUsers(user.getName() + " has left the chat room.");
-        displayActiveUsers();
-    }
-
-    // Send a message in the chat room
-    public void sendMessage(User sender, String message) {
-        String formattedMessage = sender.getName() + ": " + message;
-        messageHistory.add(formattedMessage);
-        notifyAllUsers(formattedMessage);
-    }
-
-    // Notify all users in the chat room of a new message
-    private void notifyAllUsers(String message) {
-        for (User user : users) {
-            user.update(message);
-        }
-    }
-
-    // Display list of active users in the chat room
-    public void displayActiveUsers() {
-        System.out.println("Active users in " + roomId + ":");
-        for (User user : users) {
-            System.out.println(user.getName());
-        }
-    }
-
-    // Get the room ID
-    public String getRoomId() {
-        return roomId;
-    }
-
-    // Retrieve message history
-    public List<String> getMessageHistory() {
-        return messageHistory;
-    }
-}
-
-// Singleton Pattern: Manages all chat rooms
-class ChatRoomManager {
-    private static ChatRoomManager instance;
-    private Map<String, ChatRoom> chatRooms = new HashMap<>();
-
-    private ChatRoomManager() {
-    }
-
-    public static ChatRoomManager getInstance() {
-        if (instance == null) {
-            instance = new ChatRoomManager();
-        }
-        return instance;
-    }
-
-    public ChatRoom getChatRoom(String roomId) {
-        return chatRooms.computeIfAbsent(roomId, ChatRoom::new);
-    }
-}
-
-// Adapter Pattern: Example of an adapter to handle WebSocket communication
-class WebSocketAdapter {
-    private ChatRoomManager chatRoomManager = ChatRoomManager.getInstance();
-
-    public void connectUserToRoom(String userName, String roomId) {
-        ChatRoom chatRoom = chatRoomManager.getChatRoom(roomId);
-        User user = new User(userName);
-        chatRoom.join(user);
-    }
-
-    public void disconnectUserFromRoom(User user, String roomId) {
-        ChatRoom chatRoom = chatRoomManager.getChatRoom(roomId);
-        chatRoom.leave(user);
-    }
-
-    public void sendMessageToRoom(User user, String roomId, String message) {
-        ChatRoom chatRoom = chatRoomManager.getChatRoom(roomId);
-        user.sendMessage(chatRoom, message);
-    }
-
-    public void displayChatHistory(String roomId) {
-        ChatRoom chatRoom = chatRoomManager.getChatRoom(roomId);
-        System.out.println("Chat history for room " + roomId + ":");
-        for (String message : chatRoom.getMessageHistory()) {
-            System.out.println(message);
-        }
-    }
-}
-
-// Main class to simulate the chat application
-public class ChatApplication {
-    public static void main(String[] args) {
-        // Initialize WebSocket adapter (can be extended to different communication protocols)
-        WebSocketAdapter webSocketAdapter = new WebSocketAdapter();
-
-        // Simulate users joining a chat room
-        String roomId = "Room123";
-        webSocketAdapter.connectUserToRoom("Alice", roomId);
-        webSocketAdapter.connectUserToRoom("Bob", roomId);
-
-        // Get Alice and Bob to send messages
-        User alice = new User("Alice");
-        User bob = new User("Bob");
-
-        webSocketAdapter.sendMessageToRoom(alice, roomId, "Hello, everyone!");
-        webSocketAdapter.sendMessageToRoom(bob, roomId, "Hi, Alice!");
-
-        // Display chat history
-        webSocketAdapter.displayChatHistory(roomId);
-
-        // Bob leaves the chat room
-        webSocketAdapter.disconnectUserFromRoom(bob, roomId);
-    }
-}
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+// Observer pattern: ChatRoom notifies users when a new message is posted
+interface ChatObserver {
+    void update(String message);
+
+    // Receive a message record; it is only formatted here, at the edge
+    default void update(ChatMessage message) {
+        update(message.format());
+    }
+
+    // Receive several messages at once; observers that can write them in one go should override this
+    default void updateBatch(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            update(message);
+        }
+    }
+}
+
+// Interns sender names to small ids for one history store, so stored messages carry an int
+// instead of a name. Each store has its own table and drops it when it goes, so names of users
+// long gone are not kept for the life of the process. Guarded by the owning store.
+final class SenderTable {
+    static final int SYSTEM = 0;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final int maxNameBytes;
+    private String[] names = new String[16];
+    private int size = SYSTEM + 1;
+
+    SenderTable(int maxNameBytes) {
+        this.maxNameBytes = maxNameBytes;
+    }
+
+    // Room notices have no sender and map to SYSTEM
+    int intern(String name) {
+        if (name == null) {
+            return SYSTEM;
+        }
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (name.getBytes(StandardCharsets.UTF_8).length > maxNameBytes) {
+                throw new IllegalArgumentException("Sender name too long: " + name.length() + " characters");
+            }
+            id = size++;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+            }
+            names[id] = name;
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    // Ids handed out so far, SYSTEM included; new names get the next one
+    int size() {
+        return size;
+    }
+}
+
+// One chat message, created once per send and shared by history, log and every observer
+final class ChatMessage {
+    static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+
+    // Shared with the sender, not copied; null for room notices
+    private final String senderName;
+    private final long timestamp;
+    private final byte[] body;
+
+    public ChatMessage(String senderName, long timestamp, String text) {
+        this(senderName, timestamp, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    ChatMessage(String senderName, long timestamp, byte[] body) {
+        this.senderName = senderName;
+        this.timestamp = timestamp;
+        this.body = body;
+    }
+
+    // Room notices such as joins and leaves have no sender
+    public static ChatMessage system(String text) {
+        return new ChatMessage((String) null, System.currentTimeMillis(), text);
+    }
+
+    public boolean isSystem() {
+        return senderName == null;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    // Epoch milliseconds at which the message was sent
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    public String format() {
+        return senderName == null ? getText() : senderName + ": " + getText();
+    }
+
+    // Compact encoding for history stores; the sender id is only meaningful within the store's SenderTable
+    int encodedSize() {
+        return HEADER_BYTES + body.length;
+    }
+
+    void writeTo(ByteBuffer buffer, int senderId) {
+        buffer.putInt(senderId).putLong(timestamp).put(body);
+    }
+
+    static ChatMessage readFrom(ByteBuffer buffer, int encodedSize, SenderTable senders) {
+        String senderName = senders.nameOf(buffer.getInt());
+        long timestamp = buffer.getLong();
+        byte[] body = new byte[encodedSize - HEADER_BYTES];
+        buffer.get(body);
+        return new ChatMessage(senderName, timestamp, body);
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+}
+
+// User class, implementing the ChatObserver interface
+class User implements ChatObserver {
+    private String name;
+
+    public User(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void update(String message) {
+        System.out.println(name + " received: " + message);
+    }
+
+    @Override
+    public void updateBatch(List<ChatMessage> messages) {
+        if (messages.size() == 1) {
+            update(messages.get(0));
+            return;
+        }
+        StringBuilder out = new StringBuilder(name).append(" received ").append(messages.size()).append(" messages:");
+        for (ChatMessage message : messages) {
+            out.append(System.lineSeparator()).append("  ").append(message.format());
+        }
+        System.out.println(out);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Simulate sending a message
+    public void sendMessage(ChatRoom chatRoom, String message) {
+        chatRoom.sendMessage(this, message);
+    }
+}
+
+// Runs queued items one at a time on the delivery workers, never on the caller's thread
+abstract class SerialWorker<T> implements Runnable {
+    private static final int DRAIN_LIMIT = 64;
+    private static final long DRAIN_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    protected final Queue<T> queue;
+    protected final DeliveryEngine engine;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    protected SerialWorker(Queue<T> queue, DeliveryEngine engine) {
+        this.queue = queue;
+        this.engine = engine;
+    }
+
+    // For workers that override dispatch to run somewhere other than a delivery engine
+    protected SerialWorker(Queue<T> queue) {
+        this(queue, null);
+    }
+
+    // Queue an item and make sure a worker will pick it up; false if a bounded queue is full
+    protected boolean enqueue(T item) {
+        if (!queue.offer(item)) {
+            return false; // Items already queued keep a drain scheduled
+        }
+        schedulePending();
+        return true;
+    }
+
+    protected void schedule() {
+        schedule(0);
+    }
+
+    protected void schedule(long delayMillis) {
+        if (scheduled.compareAndSet(false, true)) {
+            dispatch(delayMillis);
+        }
+    }
+
+    protected void dispatch(long delayMillis) {
+        engine.submit(this, delayMillis);
+    }
+
+    // Called whenever items are waiting; subclasses may delay the next drain
+    protected void schedulePending() {
+        schedule();
+    }
+
+    @Override
+    public void run() {
+        try {
+            drain();
+        } finally {
+            scheduled.set(false);
+            // Re-check: an item may have arrived after the last poll
+            if (!queue.isEmpty()) {
+                schedulePending();
+            }
+        }
+    }
+
+    // Hand the thread back after a count or time budget, so one slow consumer cannot monopolise a worker
+    protected void drain() {
+        long start = System.nanoTime();
+        T item;
+        for (int i = 0; i < DRAIN_LIMIT && (item = queue.poll()) != null; i++) {
+            process(item);
+            if (System.nanoTime() - start > DRAIN_BUDGET_NANOS) {
+                break;
+            }
+        }
+    }
+
+    protected abstract void process(T item);
+}
+
+// How long a mailbox may hold messages back to coalesce them into one batch
+class BatchPolicy {
+    public static final BatchPolicy IMMEDIATE = new BatchPolicy(0, 1);
+
+    private final long flushWindowMillis;
+    private final int maxBatchSize;
+
+    public BatchPolicy(long flushWindowMillis, int maxBatchSize) {
+        if (flushWindowMillis < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch policy");
+        }
+        this.flushWindowMillis = flushWindowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public boolean isBatching() {
+        return maxBatchSize > 1;
+    }
+
+    public long getFlushWindowMillis() {
+        return flushWindowMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+}
+
+// What a mailbox does when its observer cannot keep up
+class DeliveryPolicy {
+    enum Overflow {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        DISCONNECT_AFTER_LAG,
+        // Holds messages that do not fit until there is room, up to the timeout; nothing waits on them
+        BLOCK_WITH_TIMEOUT
+    }
+
+    public static final DeliveryPolicy DROP_OLDEST = new DeliveryPolicy(Overflow.DROP_OLDEST, 0, Integer.MAX_VALUE);
+    public static final DeliveryPolicy DROP_NEWEST = new DeliveryPolicy(Overflow.DROP_NEWEST, 0, Integer.MAX_VALUE);
+
+    private final Overflow overflow;
+    private final long timeoutMillis;
+    private final int maxLag;
+
+    private DeliveryPolicy(Overflow overflow, long timeoutMillis, int maxLag) {
+        this.overflow = overflow;
+        this.timeoutMillis = timeoutMillis;
+        this.maxLag = maxLag;
+    }
+
+    public static DeliveryPolicy disconnectAfterLag(int maxLag) {
+        if (maxLag < 1) {
+            throw new IllegalArgumentException("maxLag must be positive");
+        }
+        return new DeliveryPolicy(Overflow.DISCONNECT_AFTER_LAG, 0, maxLag);
+    }
+
+    public static DeliveryPolicy blockWithTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        return new DeliveryPolicy(Overflow.BLOCK_WITH_TIMEOUT, timeoutMillis, Integer.MAX_VALUE);
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public String toString() {
+        return switch (overflow) {
+            case DROP_OLDEST, DROP_NEWEST -> overflow.name();
+            case DISCONNECT_AFTER_LAG -> overflow + "(" + maxLag + ")";
+            case BLOCK_WITH_TIMEOUT -> overflow + "(" + timeoutMillis + "ms)";
+        };
+    }
+}
+
+// Point-in-time delivery metrics for one subscriber
+class SubscriberStats {
+    private final String userName;
+    private final DeliveryPolicy policy;
+    private final long enqueued;
+    private final long delivered;
+    private final long dropped;
+    private final int lag;
+    private final int maxLag;
+    private final long lagMillis;
+    private final boolean disconnected;
+
+    SubscriberStats(String userName, DeliveryPolicy policy, long enqueued, long delivered, long dropped,
+                    int lag, int maxLag, long lagMillis, boolean disconnected) {
+        this.userName = userName;
+        this.policy = policy;
+        this.enqueued = enqueued;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.lag = lag;
+        this.maxLag = maxLag;
+        this.lagMillis = lagMillis;
+        this.disconnected = disconnected;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public DeliveryPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    // Messages waiting in the mailbox, parked ones included
+    public int getLag() {
+        return lag;
+    }
+
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    // Age of the oldest undelivered message
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    @Override
+    public String toString() {
+        return userName + " [" + policy + "] enqueued=" + enqueued + " delivered=" + delivered
+                + " dropped=" + dropped + " lag=" + lag + " (max " + maxLag + ", " + lagMillis + "ms)"
+                + (disconnected ? " disconnected" : "");
+    }
+}
+
+// Per-subscriber bounded mailbox, so a slow observer only delays itself
+class Mailbox extends SerialWorker<ChatMessage> {
+    private final User user;
+    private final BlockingQueue<ChatMessage> mailbox;
+    private final BatchPolicy batching;
+    private final DeliveryPolicy policy;
+    private final Consumer<User> onDisconnect;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger maxLag = new AtomicInteger();
+    private volatile boolean disconnected;
+    // The drain waiting out the flush window, if any
+    private volatile ScheduledFuture<?> flushTimer;
+    // BLOCK_WITH_TIMEOUT: messages waiting for room, oldest first, at most a mailbox's worth.
+    // Parked rather than waited for, so a slow subscriber never holds up a fan-out thread.
+    private final ArrayDeque<Parked> parked = new ArrayDeque<>(); // Guarded by itself
+    private ScheduledFuture<?> expiryTimer; // Guarded by parked
+    private final int capacity;
+
+    private static final class Parked {
+        final ChatMessage message;
+        final long deadlineNanos;
+
+        Parked(ChatMessage message, long deadlineNanos) {
+            this.message = message;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    public Mailbox(User user, DeliveryEngine engine, int capacity, BatchPolicy batching,
+                   DeliveryPolicy policy, Consumer<User> onDisconnect) {
+        this(user, new LinkedBlockingQueue<>(capacity), capacity, engine, batching, policy, onDisconnect);
+    }
+
+    // Linked queue: idle mailboxes hold no array
+    private Mailbox(User user, BlockingQueue<ChatMessage> mailbox, int capacity, DeliveryEngine engine,
+                    BatchPolicy batching, DeliveryPolicy policy, Consumer<User> onDisconnect) {
+        super(mailbox, engine);
+        // A full mailbox rejects the message before the lag is reached, so the lag must fit
+        if (policy.getOverflow() == DeliveryPolicy.Overflow.DISCONNECT_AFTER_LAG && policy.getMaxLag() > capacity) {
+            throw new IllegalArgumentException("maxLag " + policy.getMaxLag() + " exceeds the mailbox capacity "
+                    + capacity);
+        }
+        this.user = user;
+        this.mailbox = mailbox;
+        this.capacity = capacity;
+        this.batching = batching;
+        this.policy = policy;
+        this.onDisconnect = onDisconnect;
+    }
+
+    // Called by the subscriber's shard; never blocks the sender
+    public void deliver(ChatMessage message) {
+        if (disconnected) {
+            return;
+        }
+        switch (policy.getOverflow()) {
+            case DROP_OLDEST -> {
+                while (!mailbox.offer(message)) {
+                    if (mailbox.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                accepted();
+            }
+            case DROP_NEWEST -> {
+                if (mailbox.offer(message)) {
+                    accepted();
+                } else {
+                    dropped.increment();
+                }
+            }
+            case DISCONNECT_AFTER_LAG -> {
+                if (mailbox.size() < policy.getMaxLag() && mailbox.offer(message)) {
+                    accepted();
+                } else {
+                    dropped.increment();
+                    disconnect();
+                }
+            }
+            case BLOCK_WITH_TIMEOUT -> offerOrPark(message);
+        }
+    }
+
+    private void accepted() {
+        enqueued.increment();
+        maxLag.accumulateAndGet(mailbox.size(), Math::max);
+        schedulePending();
+    }
+
+    // Queue behind any parked messages, so order is kept; they move in as the mailbox drains
+    private void offerOrPark(ChatMessage message) {
+        synchronized (parked) {
+            if (parked.isEmpty() && mailbox.offer(message)) {
+                accepted();
+            } else if (policy.getTimeoutMillis() == 0 || parked.size() >= capacity) {
+                dropped.increment();
+            } else {
+                parked.add(new Parked(message,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getTimeoutMillis())));
+                if (expiryTimer == null) {
+                    armExpiry();
+                }
+            }
+        }
+    }
+
+    // Move parked messages into whatever room there is and drop those past their timeout
+    private void releaseParked() {
+        synchronized (parked) {
+            long now = System.nanoTime();
+            Parked head;
+            while ((head = parked.peek()) != null) {
+                if (mailbox.offer(head.message)) {
+                    accepted();
+                } else if (now - head.deadlineNanos >= 0) {
+                    dropped.increment();
+                } else {
+                    break;
+                }
+                parked.poll();
+            }
+            if (parked.isEmpty()) {
+                if (expiryTimer != null && engine.cancel(expiryTimer)) {
+                    expiryTimer = null;
+                }
+            } else if (expiryTimer == null) {
+                armExpiry();
+            }
+        }
+    }
+
+    // Caller holds the parked lock; fires when the oldest parked message times out
+    private void armExpiry() {
+        long delayNanos = parked.peek().deadlineNanos - System.nanoTime();
+        expiryTimer = engine.schedule(this::expire, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1));
+    }
+
+    private void expire() {
+        synchronized (parked) {
+            expiryTimer = null;
+        }
+        releaseParked();
+    }
+
+    // Draining made room for parked messages
+    @Override
+    public void run() {
+        super.run();
+        if (policy.getOverflow() == DeliveryPolicy.Overflow.BLOCK_WITH_TIMEOUT) {
+            releaseParked();
+        }
+    }
+
+    private void disconnect() {
+        disconnected = true;
+        mailbox.clear();
+        System.out.println(user.getName() + " disconnected: more than " + policy.getMaxLag() + " messages behind.");
+        onDisconnect.accept(user);
+    }
+
+    public SubscriberStats getStats() {
+        ChatMessage oldest = mailbox.peek();
+        long lagMillis = oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getTimestamp());
+        int waiting;
+        synchronized (parked) {
+            waiting = mailbox.size() + parked.size();
+        }
+        return new SubscriberStats(user.getName(), policy, enqueued.sum(), delivered.sum(), dropped.sum(),
+                waiting, maxLag.get(), lagMillis, disconnected);
+    }
+
+    // A full batch goes out right away; otherwise wait out the flush window
+    @Override
+    protected void schedulePending() {
+        if (!batching.isBatching()) {
+            schedule();
+            return;
+        }
+        boolean full = queue.size() >= batching.getMaxBatchSize();
+        schedule(full ? 0 : batching.getFlushWindowMillis());
+        // Checked after arming too: the batch may have filled while the timer was being set
+        if (full || queue.size() >= batching.getMaxBatchSize()) {
+            flushNow();
+        }
+    }
+
+    @Override
+    protected void dispatch(long delayMillis) {
+        if (delayMillis > 0) {
+            flushTimer = engine.schedule(this, delayMillis);
+        } else {
+            engine.submit(this);
+        }
+    }
+
+    // Pull a drain that is waiting out the flush window forward; only one caller wins the cancel
+    private void flushNow() {
+        ScheduledFuture<?> timer = flushTimer;
+        if (timer != null && engine.cancel(timer)) {
+            engine.submit(this);
+        }
+    }
+
+    @Override
+    protected void drain() {
+        if (!batching.isBatching()) {
+            super.drain();
+            return;
+        }
+        List<ChatMessage> batch = new ArrayList<>(Math.min(queue.size(), batching.getMaxBatchSize()));
+        ChatMessage message;
+        while (batch.size() < batching.getMaxBatchSize() && (message = queue.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        delivered.add(batch.size());
+        try {
+            user.updateBatch(batch);
+        } catch (RuntimeException e) {
+            System.out.println("Delivery to " + user.getName() + " failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void process(ChatMessage message) {
+        delivered.increment();
+        try {
+            user.update(message);
+        } catch (RuntimeException e) {
+            System.out.println("Delivery to " + user.getName() + " failed: " + e.getMessage());
+        }
+    }
+
+    public User getUser() {
+        return user;
+    }
+}
+
+// One stripe of a room's subscribers; messages are fanned out in the order they were sent
+class SubscriberShard extends SerialWorker<ChatMessage> {
+    private static final int MIN_SLOTS = 4;
+
+    // Fan-out reads a published view without locking. Joins fill the next slot and leaves clear
+    // theirs, so both are O(1); the array is only copied to grow or to squeeze out holes.
+    private static final class Members {
+        final Mailbox[] slots;
+        final int count;
+
+        Members(Mailbox[] slots, int count) {
+            this.slots = slots;
+            this.count = count;
+        }
+    }
+
+    private volatile Members members = new Members(new Mailbox[MIN_SLOTS], 0);
+    private final Map<User, Integer> slotOf = new HashMap<>(); // Guarded by this
+
+    public SubscriberShard(DeliveryEngine engine) {
+        super(new ConcurrentLinkedQueue<>(), engine);
+    }
+
+    public synchronized void add(Mailbox mailbox) {
+        Members current = members;
+        Mailbox[] slots = current.slots;
+        int count = current.count;
+        if (count == slots.length) {
+            // Doubling the live members keeps copies amortised O(1) per join or leave
+            slots = compact(current, Math.max(MIN_SLOTS, 2 * slotOf.size()));
+            count = slotOf.size();
+        }
+        slots[count] = mailbox;
+        slotOf.put(mailbox.getUser(), count);
+        members = new Members(slots, count + 1);
+    }
+
+    public synchronized boolean remove(User user) {
+        Integer slot = slotOf.remove(user);
+        if (slot == null) {
+            return false;
+        }
+        Members current = members;
+        current.slots[slot] = null;
+        if (current.count > MIN_SLOTS && slotOf.size() < current.count / 4) {
+            // Mostly holes: shrink, so fan-out does not walk a room's former size
+            members = new Members(compact(current, Math.max(MIN_SLOTS, 2 * slotOf.size())), slotOf.size());
+        } else {
+            members = new Members(current.slots, current.count);
+        }
+        return true;
+    }
+
+    // Copy the live mailboxes, in order, to the front of a new array and renumber them
+    private Mailbox[] compact(Members current, int length) {
+        Mailbox[] slots = new Mailbox[length];
+        int next = 0;
+        for (int i = 0; i < current.count; i++) {
+            Mailbox mailbox = current.slots[i];
+            if (mailbox != null) {
+                slotOf.put(mailbox.getUser(), next);
+                slots[next++] = mailbox;
+            }
+        }
+        return slots;
+    }
+
+    public List<Mailbox> getMailboxes() {
+        Members current = members;
+        List<Mailbox> mailboxes = new ArrayList<>();
+        for (int i = 0; i < current.count; i++) {
+            if (current.slots[i] != null) {
+                mailboxes.add(current.slots[i]);
+            }
+        }
+        return mailboxes;
+    }
+
+    public void publish(ChatMessage message) {
+        enqueue(message);
+    }
+
+    // Fan-out has its own threads, so observers blocking the delivery workers cannot hold it up
+    @Override
+    protected void dispatch(long delayMillis) {
+        engine.submitFanOut(this);
+    }
+
+    @Override
+    protected void process(ChatMessage message) {
+        Members current = members;
+        for (int i = 0; i < current.count; i++) {
+            Mailbox mailbox = current.slots[i];
+            if (mailbox != null) {
+                mailbox.deliver(message);
+            }
+        }
+    }
+}
+
+// Pool of delivery workers shared by all chat rooms
+class DeliveryEngine {
+    private static final DeliveryEngine SHARED =
+            new DeliveryEngine(Runtime.getRuntime().availableProcessors(), 1024);
+
+    private final ExecutorService workers;
+    private final ExecutorService fanOutWorkers;
+    private final ScheduledExecutorService timer;
+    private final int workerCount;
+    private final int mailboxCapacity;
+    private final BatchPolicy batching;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public DeliveryEngine(int workerCount, int mailboxCapacity) {
+        this(workerCount, mailboxCapacity, BatchPolicy.IMMEDIATE);
+    }
+
+    public DeliveryEngine(int workerCount, int mailboxCapacity, BatchPolicy batching) {
+        this.workerCount = workerCount;
+        this.mailboxCapacity = mailboxCapacity;
+        this.batching = batching;
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "chat-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.fanOutWorkers = Executors.newFixedThreadPool(Math.max(1, workerCount / 2), runnable -> {
+            Thread thread = new Thread(runnable, "chat-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-delivery-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static DeliveryEngine shared() {
+        return SHARED;
+    }
+
+    public Mailbox newMailbox(User user, DeliveryPolicy policy, Consumer<User> onDisconnect) {
+        return new Mailbox(user, this, mailboxCapacity, batching, policy, onDisconnect);
+    }
+
+    public SubscriberShard[] newShards() {
+        SubscriberShard[] shards = new SubscriberShard[workerCount];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new SubscriberShard(this);
+        }
+        return shards;
+    }
+
+    void submit(Runnable task) {
+        submit(task, 0);
+    }
+
+    // Delayed tasks count as pending from the moment they are submitted
+    void submit(Runnable task, long delayMillis) {
+        if (delayMillis > 0) {
+            schedule(task, delayMillis);
+        } else {
+            workers.execute(counted(task));
+        }
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        Runnable counted = counted(task);
+        return timer.schedule(() -> workers.execute(counted), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // True if the delayed task had not fired yet; it then no longer counts as pending
+    boolean cancel(ScheduledFuture<?> delayed) {
+        if (delayed.cancel(false)) {
+            pending.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    void submitFanOut(Runnable task) {
+        fanOutWorkers.execute(counted(task));
+    }
+
+    private Runnable counted(Runnable task) {
+        pending.incrementAndGet();
+        return () -> {
+            try {
+                task.run();
+            } finally {
+                pending.decrementAndGet();
+            }
+        };
+    }
+
+    // Wait until every queued message has been handed to its observers
+    public boolean awaitQuiescence(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+        fanOutWorkers.shutdown();
+        workers.shutdown();
+    }
+}
+
+// File names for per-room files. Letters, digits, '.', '-' and '_' are kept; every other UTF-8 byte,
+// '%' included, becomes %XX, so no two room ids share a file.
+final class RoomFiles {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private RoomFiles() {
+    }
+
+    public static String encode(String roomId) {
+        StringBuilder name = new StringBuilder(roomId.length());
+        for (byte b : roomId.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '_') {
+                name.append((char) c);
+            } else {
+                name.append('%').append(HEX[c >>> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        return name.toString();
+    }
+
+    // Name used before ids were escaped; it mapped e.g. "a/b" and "a_b" to the same file
+    static String legacyName(String roomId) {
+        return roomId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
+
+// Pluggable storage for a room's message history, addressed by sequence number
+interface HistoryStore extends Closeable {
+    long append(ChatMessage message);
+    List<ChatMessage> read(long fromSeq, int limit);
+    long size();
+
+    @Override
+    void close();
+}
+
+// Unbounded heap-backed history, useful for small rooms and tests
+class InMemoryHistoryStore implements HistoryStore {
+    private final List<ChatMessage> messages = new ArrayList<>();
+
+    @Override
+    public synchronized long append(ChatMessage message) {
+        messages.add(message);
+        return messages.size() - 1;
+    }
+
+    @Override
+    public synchronized List<ChatMessage> read(long fromSeq, int limit) {
+        int from = (int) Math.min(Math.max(fromSeq, 0), messages.size());
+        int to = (int) Math.min(messages.size(), from + (long) limit);
+        return List.copyOf(messages.subList(from, to));
+    }
+
+    @Override
+    public synchronized long size() {
+        return messages.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+// Fixed-size ring of off-heap segments of encoded messages; sealed segments are spilled to an append-only file
+class SegmentedHistoryStore implements HistoryStore {
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "chat-history");
+    // Files start with this marker. Sender ids are local to a store, so each name is written to the
+    // file, as a record with a negative length, ahead of the first segment that uses it.
+    private static final long MAGIC = 0x4348415448495332L; // "CHATHIS2"
+    private static final int HEADER_BYTES = Long.BYTES;
+    // Spilled segments remember where every this-many-th record starts, so a page read only
+    // fetches its own records plus at most this many before and after
+    private static final int INDEX_STRIDE = 64;
+
+    // A segment that has been written to the spill file
+    private static class SpilledSegment {
+        final long baseSeq;
+        final int count;
+        final long fileOffset;
+        final int length;
+        // Offset within the segment of record i * INDEX_STRIDE
+        final int[] index;
+
+        SpilledSegment(long baseSeq, int count, long fileOffset, int length, int[] index) {
+            this.baseSeq = baseSeq;
+            this.count = count;
+            this.fileOffset = fileOffset;
+            this.length = length;
+            this.index = index;
+        }
+
+        // End of record i's stride, or of the segment
+        int strideEnd(int record) {
+            int slot = (record + INDEX_STRIDE - 1) / INDEX_STRIDE;
+            return slot < index.length ? index[slot] : length;
+        }
+    }
+
+    private static final int INITIAL_SEGMENT_BYTES = 4 * 1024;
+
+    // One slot of the in-memory ring: length-prefixed encoded messages
+    private static class Segment {
+        final int capacity;
+        ByteBuffer buffer;
+        int[] offsets = new int[256];
+        long baseSeq;
+        int count;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // Off-heap memory is taken on first write and grows by doubling, so quiet rooms stay small
+        int remaining() {
+            return buffer == null ? capacity : capacity - buffer.position();
+        }
+
+        void reset(long baseSeq) {
+            this.baseSeq = baseSeq;
+            this.count = 0;
+            if (buffer != null) {
+                buffer.clear();
+            }
+        }
+
+        void add(ChatMessage message, int senderId) {
+            int needed = Integer.BYTES + message.encodedSize();
+            if (buffer == null || buffer.remaining() < needed) {
+                int size = buffer == null ? INITIAL_SEGMENT_BYTES : buffer.capacity();
+                while (size < (buffer == null ? 0 : buffer.position()) + needed) {
+                    size *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.min(size, capacity));
+                if (buffer != null) {
+                    grown.put(buffer.flip());
+                }
+                buffer = grown;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = buffer.position();
+            buffer.putInt(message.encodedSize());
+            message.writeTo(buffer, senderId);
+        }
+
+        ChatMessage get(long seq, SenderTable senders) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offsets[(int) (seq - baseSeq)]);
+            return ChatMessage.readFrom(record, record.getInt(), senders);
+        }
+    }
+
+    private final Path file;
+    private final Segment[] ring;
+    private final List<SpilledSegment> spilled = new ArrayList<>();
+    private final SenderTable senders;
+    // Sender ids below this have their names in the file
+    private int sendersSpilled = SenderTable.SYSTEM + 1;
+    // Reused by spilled reads, which run under the store's lock
+    private ByteBuffer readBuffer = ByteBuffer.allocate(0);
+    private FileChannel channel;
+    private long spillOffset;
+    private int sealedInRing;
+    private int active;
+    private long nextSeq;
+    private boolean closed;
+
+    public SegmentedHistoryStore(String roomId) {
+        this(roomId, DEFAULT_DIRECTORY, false);
+    }
+
+    public SegmentedHistoryStore(String roomId, Path directory, boolean resume) {
+        this(roomId, directory, 4, 256 * 1024, resume);
+    }
+
+    // With resume set, history flushed by an earlier store for the same room is read back;
+    // otherwise the file is overwritten on the first spill
+    public SegmentedHistoryStore(String roomId, Path directory, int ringSegments, int segmentBytes, boolean resume) {
+        this.file = directory.resolve(RoomFiles.encode(roomId) + ".history");
+        this.ring = new Segment[ringSegments];
+        for (int i = 0; i < ringSegments; i++) {
+            ring[i] = new Segment(segmentBytes);
+        }
+        // A name record must fit a segment-sized read, or reloading would take it for a torn write
+        this.senders = new SenderTable(segmentBytes - Integer.BYTES);
+        if (resume && Files.exists(file)) {
+            try {
+                reload();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to reload history from " + file, e);
+            }
+        }
+    }
+
+    // Rebuild the segment index from the file, one segment-sized read at a time; a torn
+    // record at the end is cut off
+    private void reload() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readAt(header, 0);
+        if (header.hasRemaining() || header.getLong(0) != MAGIC) {
+            channel.truncate(0);
+            writeHeader();
+            return;
+        }
+        int capacity = ring[0].capacity;
+        ByteBuffer chunk = ByteBuffer.allocate(capacity);
+        long segmentStart = HEADER_BYTES;
+        while (segmentStart < size) {
+            chunk.clear();
+            readAt(chunk, segmentStart);
+            chunk.flip();
+            // Names written ahead of the segment, then its messages up to the next name
+            int namesEnd = 0;
+            int count = 0;
+            int[] index = new int[capacity / INDEX_STRIDE + 1];
+            while (chunk.remaining() >= Integer.BYTES) {
+                int length = chunk.getInt(chunk.position());
+                int recordLength = length < 0 ? -1 - length : length;
+                if (recordLength > chunk.remaining() - Integer.BYTES || (length < 0 && count > 0)) {
+                    break;
+                }
+                if (length < 0) {
+                    byte[] name = new byte[recordLength];
+                    chunk.position(chunk.position() + Integer.BYTES).get(name);
+                    senders.intern(new String(name, StandardCharsets.UTF_8));
+                    namesEnd = chunk.position();
+                    continue;
+                }
+                if (count % INDEX_STRIDE == 0) {
+                    index[count / INDEX_STRIDE] = chunk.position() - namesEnd;
+                }
+                chunk.position(chunk.position() + Integer.BYTES + length);
+                count++;
+            }
+            if (count > 0) {
+                spilled.add(new SpilledSegment(nextSeq, count, segmentStart + namesEnd, chunk.position() - namesEnd,
+                        Arrays.copyOf(index, (count + INDEX_STRIDE - 1) / INDEX_STRIDE)));
+                nextSeq += count;
+            } else if (namesEnd == 0) {
+                break;
+            }
+            segmentStart += chunk.position();
+        }
+        sendersSpilled = senders.size();
+        channel.truncate(segmentStart);
+        spillOffset = segmentStart;
+        ring[active].reset(nextSeq);
+    }
+
+    // Fill the buffer from the given file position, stopping early at the end of the file
+    private void readAt(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(0, MAGIC);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        spillOffset = HEADER_BYTES;
+    }
+
+    @Override
+    public synchronized long append(ChatMessage message) {
+        ensureOpen();
+        int needed = Integer.BYTES + message.encodedSize();
+        Segment segment = ring[active];
+        if (needed > segment.capacity) {
+            throw new IllegalArgumentException("Message larger than a history segment");
+        }
+        int senderId = senders.intern(message.getSenderName());
+        if (needed > segment.remaining()) {
+            spill(segment);
+            active = (active + 1) % ring.length;
+            segment = ring[active];
+            segment.reset(nextSeq);
+        }
+        segment.add(message, senderId);
+        return nextSeq++;
+    }
+
+
+    // Sealed segments go to disk right away, so a ring slot can be reused without losing data
+    private void spill(Segment segment) {
+        try {
+            if (channel == null) {
+                Files.createDirectories(file.getParent());
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                writeHeader();
+            }
+            spillSenders();
+            ByteBuffer data = segment.buffer.duplicate().flip();
+            int length = data.remaining();
+            long offset = spillOffset;
+            while (data.hasRemaining()) {
+                spillOffset += channel.write(data, spillOffset);
+            }
+            int[] index = new int[(segment.count + INDEX_STRIDE - 1) / INDEX_STRIDE];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = segment.offsets[i * INDEX_STRIDE];
+            }
+            spilled.add(new SpilledSegment(segment.baseSeq, segment.count, offset, length, index));
+            sealedInRing = Math.min(sealedInRing + 1, ring.length - 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill history to " + file, e);
+        }
+    }
+
+    // Names first seen since the last spill, ahead of the segment that may use them
+    private void spillSenders() throws IOException {
+        if (sendersSpilled == senders.size()) {
+            return;
+        }
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(names);
+        for (int id = sendersSpilled; id < senders.size(); id++) {
+            byte[] name = senders.nameOf(id).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(-1 - name.length);
+            out.write(name);
+        }
+        ByteBuffer data = ByteBuffer.wrap(names.toByteArray());
+        while (data.hasRemaining()) {
+            spillOffset += channel.write(data, spillOffset);
+        }
+        sendersSpilled = senders.size();
+    }
+
+    @Override
+    public synchronized List<ChatMessage> read(long fromSeq, int limit) {
+        ensureOpen();
+        List<ChatMessage> page = new ArrayList<>();
+        long seq = Math.max(fromSeq, 0);
+        long oldestInMemory = oldestInMemorySeq();
+        while (seq < nextSeq && page.size() < limit) {
+            if (seq < oldestInMemory) {
+                seq = readSpilled(seq, limit, page);
+            } else {
+                page.add(segmentFor(seq).get(seq, senders));
+                seq++;
+            }
+        }
+        return page;
+    }
+
+    // The ring holds the active segment plus the segments sealed just before it; reloaded segments are only on disk
+    private long oldestInMemorySeq() {
+        return sealedInRing == 0 ? ring[active].baseSeq : spilled.get(spilled.size() - sealedInRing).baseSeq;
+    }
+
+    private Segment segmentFor(long seq) {
+        for (int i = 0; i < ring.length; i++) {
+            Segment segment = ring[(active - i + ring.length) % ring.length];
+            if (seq >= segment.baseSeq) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("Sequence " + seq + " is not in memory");
+    }
+
+    // Read only the strides of the segment that hold the requested records
+    private long readSpilled(long seq, int limit, List<ChatMessage> page) {
+        SpilledSegment meta = spilled.get(spilledIndexOf(seq));
+        int first = (int) (seq - meta.baseSeq);
+        int end = (int) Math.min(meta.count, (long) first + limit - page.size());
+        int fromRecord = first / INDEX_STRIDE * INDEX_STRIDE;
+        int from = meta.index[first / INDEX_STRIDE];
+        int to = meta.strideEnd(end);
+        if (readBuffer.capacity() < to - from) {
+            readBuffer = ByteBuffer.allocate(Math.max(to - from, Math.min(2 * readBuffer.capacity(), meta.length)));
+        }
+        ByteBuffer data = readBuffer.clear().limit(to - from);
+        try {
+            while (data.hasRemaining()) {
+                if (channel.read(data, meta.fileOffset + from + data.position()) < 0) {
+                    throw new EOFException("Truncated history segment in " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read history from " + file, e);
+        }
+        data.flip();
+        for (int record = fromRecord; record < end; record++) {
+            int length = data.getInt();
+            if (record >= first) {
+                page.add(ChatMessage.readFrom(data, length, senders));
+            } else {
+                data.position(data.position() + length);
+            }
+        }
+        return meta.baseSeq + end;
+    }
+
+    // Binary search for the last spilled segment starting at or before seq
+    private int spilledIndexOf(long seq) {
+        int low = 0;
+        int high = spilled.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (spilled.get(mid).baseSeq <= seq) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized long size() {
+        return nextSeq;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("History store " + file + " is closed");
+        }
+    }
+
+    // Flush the unsealed segment so the file holds the full history for a resuming store, then release the ring
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (ring[active].count > 0) {
+                spill(ring[active]);
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close " + file, e);
+        } finally {
+            Arrays.fill(ring, null);
+        }
+    }
+}
+
+// Write-ahead log of a room's messages: appends are group-committed, replay reads the file memory-mapped.
+// Records carry the sender's name rather than its interned id, which does not survive a restart.
+class ChatLog extends SerialWorker<ChatLog.PendingRecord> {
+    public static final String EXTENSION = ".wal";
+    private static final int MAGIC = 0x43484C32; // "CHL2"
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES; // length + CRC32
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final long REPLAY_WINDOW_BYTES = 1L << 30;
+    private static final int MAX_COMMIT_BATCH = 4096;
+    // One thread does every log's writes and fsyncs; each log still commits its own batches
+    private static final ExecutorService COMMITTER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-log-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A message waiting for the next fsync
+    static class PendingRecord {
+        final ChatMessage message;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        PendingRecord(ChatMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private volatile boolean closed;
+    // Set if a failed write could not be cut back off the file; later records would be unreachable
+    private volatile IOException broken;
+
+    private ChatLog(Path file, FileChannel channel) {
+        super(new ConcurrentLinkedQueue<>());
+        this.file = file;
+        this.channel = channel;
+    }
+
+    @Override
+    protected void dispatch(long delayMillis) {
+        COMMITTER.execute(this);
+    }
+
+    // Open the room's log, replaying existing records into the sink and cutting off any torn tail
+    public static ChatLog open(Path directory, String roomId, Consumer<ChatMessage> replaySink) {
+        Path file = directory.resolve(RoomFiles.encode(roomId) + EXTENSION);
+        try {
+            Files.createDirectories(directory);
+            // A log written under the old naming is taken over if it really is this room's
+            Path legacy = directory.resolve(RoomFiles.legacyName(roomId) + EXTENSION);
+            if (!legacy.equals(file) && Files.notExists(file) && Files.exists(legacy)
+                    && roomId.equals(readRoomId(legacy))) {
+                Files.move(legacy, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long validEnd;
+            if (channel.size() == 0) {
+                byte[] id = roomId.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + id.length);
+                header.putInt(MAGIC).putInt(id.length).put(id).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                channel.force(true);
+                validEnd = channel.size();
+            } else {
+                validEnd = replay(file, replaySink);
+                channel.truncate(validEnd);
+            }
+            channel.position(validEnd);
+            return new ChatLog(file, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open chat log " + file, e);
+        }
+    }
+
+    // Read the room id a log was written for
+    public static String readRoomId(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1024));
+            return new String(readHeader(header, file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read chat log " + file, e);
+        }
+    }
+
+    private static byte[] readHeader(ByteBuffer buffer, Path file) throws IOException {
+        if (buffer.remaining() < Integer.BYTES * 2 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a chat log: " + file);
+        }
+        byte[] id = new byte[buffer.getInt()];
+        buffer.get(id);
+        return id;
+    }
+
+    // Replay every intact record; returns the offset just past the last one
+    public static long replay(Path file, Consumer<ChatMessage> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = Integer.BYTES * 2L + readHeader(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 1024)), file).length;
+            CRC32 crc = new CRC32();
+            while (position < size) {
+                // Records never straddle a window: a partial record is re-read at the start of the next one
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(REPLAY_WINDOW_BYTES, size - position));
+                while (window.remaining() >= RECORD_HEADER_BYTES) {
+                    int start = window.position();
+                    int length = window.getInt();
+                    int checksum = window.getInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES || length > window.remaining()) {
+                        window.position(start);
+                        break;
+                    }
+                    ByteBuffer body = window.slice(window.position(), length);
+                    crc.reset();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        return position + start; // Torn or corrupt write: everything after it is discarded
+                    }
+                    sink.accept(decode(body));
+                    window.position(window.position() + length);
+                }
+                if (window.position() == 0) {
+                    break; // Incomplete record at the end of the file
+                }
+                position += window.position();
+            }
+            return position;
+        }
+    }
+
+    // Record payload: timestamp, sender name length, sender name and body, all UTF-8
+    private static ChatMessage decode(ByteBuffer payload) {
+        long timestamp = payload.getLong();
+        byte[] name = new byte[payload.getInt()];
+        payload.get(name);
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+        return new ChatMessage(name.length == 0 ? null : new String(name, StandardCharsets.UTF_8), timestamp, body);
+    }
+
+    private static byte[] senderNameOf(ChatMessage message) {
+        return message.isSystem()
+                ? new byte[0]
+                : message.getSenderName().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Queue a message; the future completes once it has been fsynced
+    public CompletableFuture<Void> append(ChatMessage message) {
+        if (closed) {
+            throw new IllegalStateException("Chat log " + file + " is closed");
+        }
+        if (broken != null) {
+            throw new UncheckedIOException("Chat log " + file + " is unusable after a failed write", broken);
+        }
+        if (message.getBody().length > MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Message larger than a chat log record");
+        }
+        PendingRecord record = new PendingRecord(message);
+        enqueue(record);
+        return record.durable;
+    }
+
+    // Group commit: everything queued while the previous fsync ran is written and synced together.
+    // Polling under the lock keeps close() from overtaking a batch that is already taken off the queue.
+    @Override
+    protected synchronized void drain() {
+        List<PendingRecord> batch = new ArrayList<>();
+        PendingRecord record;
+        while (batch.size() < MAX_COMMIT_BATCH && (record = queue.poll()) != null) {
+            batch.add(record);
+        }
+        commit(batch);
+    }
+
+    @Override
+    protected void process(PendingRecord record) {
+        commit(List.of(record));
+    }
+
+    private synchronized void commit(List<PendingRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[][] names = new byte[batch.size()][];
+        int size = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            names[i] = senderNameOf(batch.get(i).message);
+            size += RECORD_HEADER_BYTES + Long.BYTES + Integer.BYTES + names[i].length
+                    + batch.get(i).message.getBody().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < batch.size(); i++) {
+            ChatMessage message = batch.get(i).message;
+            int start = buffer.position();
+            buffer.position(start + RECORD_HEADER_BYTES);
+            buffer.putLong(message.getTimestamp()).putInt(names[i].length).put(names[i]).put(message.getBody());
+            int length = buffer.position() - start - RECORD_HEADER_BYTES;
+            crc.reset();
+            crc.update(buffer.slice(start + RECORD_HEADER_BYTES, length));
+            buffer.putInt(start, length).putInt(start + Integer.BYTES, (int) crc.getValue());
+        }
+        buffer.flip();
+        long goodEnd = -1;
+        try {
+            goodEnd = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // A partial record left in the middle of the file would end replay there, hiding every
+            // record committed after it, so cut the file back to the last complete one
+            if (goodEnd >= 0) {
+                try {
+                    channel.truncate(goodEnd);
+                    channel.position(goodEnd);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                    broken = e;
+                }
+            } else {
+                broken = e;
+            }
+            for (PendingRecord record : batch) {
+                record.durable.completeExceptionally(e);
+            }
+            return;
+        }
+        for (PendingRecord record : batch) {
+            record.durable.complete(null);
+        }
+    }
+
+    // Commit whatever is still queued, then close the file
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        List<PendingRecord> rest = new ArrayList<>();
+        PendingRecord record;
+        while ((record = queue.poll()) != null) {
+            rest.add(record);
+        }
+        commit(rest);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close chat log " + file, e);
+        }
+    }
+}
+
+// ChatRoom acts as the subject in the observer pattern
+class ChatRoom {
+    private String roomId;
+    private final Set<User> users = ConcurrentHashMap.newKeySet();
+    private HistoryStore messageHistory;
+    private DeliveryEngine engine;
+    private SubscriberShard[] shards;
+    private ChatLog log;
+    // Members plus sends in flight, so a room is never retired under a sender; -1 once retired
+    private final AtomicInteger holds = new AtomicInteger();
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    public ChatRoom(String roomId) {
+        this(roomId, DeliveryEngine.shared(), new SegmentedHistoryStore(roomId));
+    }
+
+    public ChatRoom(String roomId, DeliveryEngine engine, HistoryStore messageHistory) {
+        this(roomId, engine, messageHistory, null);
+    }
+
+    // Rooms with a log write every message ahead; the log must already be replayed into the history
+    public ChatRoom(String roomId, DeliveryEngine engine, HistoryStore messageHistory, ChatLog log) {
+        this.roomId = roomId;
+        this.engine = engine;
+        this.messageHistory = messageHistory;
+        this.log = log;
+        this.shards = engine.newShards();
+    }
+
+    // Register a user in the chat room
+    public void join(User user) {
+        join(user, DeliveryPolicy.DROP_OLDEST);
+    }
+
+    // Register a user with its own policy for falling behind
+    public void join(User user, DeliveryPolicy policy) {
+        if (!tryJoin(user, policy)) {
+            throw new IllegalStateException("Chat room " + roomId + " has been closed");
+        }
+    }
+
+    // Register without the join notice, for bulk loads such as benchmarks
+    void subscribe(User user) {
+        if (!trySubscribe(user)) {
+            throw new IllegalStateException("Chat room " + roomId + " has been closed");
+        }
+    }
+
+    boolean trySubscribe(User user) {
+        return tryJoin(user, DeliveryPolicy.DROP_OLDEST, false);
+    }
+
+    // Join unless the room has already been retired by its manager
+    boolean tryJoin(User user, DeliveryPolicy policy) {
+        return tryJoin(user, policy, true);
+    }
+
+    private boolean tryJoin(User user, DeliveryPolicy policy, boolean announce) {
+        // Built first: a policy the mailbox rejects must fail before the user counts as a member
+        Mailbox mailbox = engine.newMailbox(user, policy, this::leave);
+        if (!hold()) {
+            return false;
+        }
+        lastActivityNanos = System.nanoTime();
+        if (!users.add(user)) {
+            holds.decrementAndGet(); // Already a member
+            return true;
+        }
+        shardFor(user).add(mailbox);
+        if (announce) {
+            notifyAllUsers(ChatMessage.system(user.getName() + " has joined the chat room."));
+            logMembership(user, "joined");
+        }
+        return true;
+    }
+
+    // Unregister a user from the chat room
+    public void leave(User user) {
+        leave(user, true);
+    }
+
+    // Counterpart of subscribe: no leave notice
+    void unsubscribe(User user) {
+        leave(user, false);
+    }
+
+    private void leave(User user, boolean announce) {
+        if (users.remove(user)) {
+            holds.decrementAndGet();
+        }
+        lastActivityNanos = System.nanoTime();
+        shardFor(user).remove(user);
+        if (announce) {
+            notifyAllUsers(ChatMessage.system(user.getName() + " has left the chat room."));
+            logMembership(user, "left");
+        }
+    }
+
+    // One line per change; listing every member on each join would make filling a room quadratic
+    private void logMembership(User user, String change) {
+        System.out.println(user.getName() + " " + change + " " + roomId + ", " + users.size() + " active users");
+    }
+
+    // Send a message in the chat room
+    public void sendMessage(User sender, String message) {
+        sendMessage(sender.getName(), message);
+    }
+
+    // Send on behalf of a sender known only by name, e.g. one connected to another node
+    void sendMessage(String senderName, String message) {
+        if (!trySendMessage(senderName, message)) {
+            throw new IllegalStateException("Chat room " + roomId + " has been closed");
+        }
+    }
+
+    // Send unless the room has already been retired; the room cannot be retired while the send is under way
+    boolean trySendMessage(String senderName, String message) {
+        if (!hold()) {
+            return false;
+        }
+        try {
+            append(senderName, message);
+        } finally {
+            holds.decrementAndGet();
+        }
+        return true;
+    }
+
+    private boolean hold() {
+        int count;
+        do {
+            count = holds.get();
+            if (count < 0) {
+                return false;
+            }
+        } while (!holds.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private void append(String senderName, String message) {
+        lastActivityNanos = System.nanoTime();
+        // Built once; formatting is left to each observer
+        ChatMessage chatMessage = new ChatMessage(senderName, System.currentTimeMillis(), message);
+        // History and log must see messages in the same order, or replay would reorder them
+        synchronized (messageHistory) {
+            if (log == null) {
+                messageHistory.append(chatMessage);
+            } else {
+                // Logged messages reach history and observers only once durable, so no one sees a
+                // message a crash could still lose. The log completes in order, so registering under
+                // the lock keeps history in log order.
+                log.append(chatMessage).whenComplete((durable, failure) -> {
+                    if (failure == null) {
+                        synchronized (messageHistory) {
+                            messageHistory.append(chatMessage);
+                        }
+                        notifyAllUsers(chatMessage);
+                    } else {
+                        System.out.println("Message to " + roomId + " not delivered, logging it failed: "
+                                + failure.getMessage());
+                    }
+                });
+            }
+        }
+        if (log == null) {
+            notifyAllUsers(chatMessage);
+        }
+    }
+
+    // Fan out a message without recording it, e.g. one relayed from the node that owns the room
+    void publish(ChatMessage message) {
+        if (!tryPublish(message)) {
+            throw new IllegalStateException("Chat room " + roomId + " has been closed");
+        }
+    }
+
+    // Publish unless the room has already been retired, in which case there is no one to tell
+    boolean tryPublish(ChatMessage message) {
+        if (!hold()) {
+            return false;
+        }
+        try {
+            lastActivityNanos = System.nanoTime();
+            notifyAllUsers(message);
+        } finally {
+            holds.decrementAndGet();
+        }
+        return true;
+    }
+
+    // Notify all users in the chat room of a new message; cost is per shard, not per user
+    private void notifyAllUsers(ChatMessage message) {
+        for (SubscriberShard shard : shards) {
+            shard.publish(message);
+        }
+    }
+
+    private SubscriberShard shardFor(User user) {
+        return shards[Math.floorMod(System.identityHashCode(user), shards.length)];
+    }
+
+    // Delivery metrics for every subscriber, e.g. to find the clients holding a room back
+    public List<SubscriberStats> getSubscriberStats() {
+        List<SubscriberStats> stats = new ArrayList<>();
+        for (SubscriberShard shard : shards) {
+            for (Mailbox mailbox : shard.getMailboxes()) {
+                stats.add(mailbox.getStats());
+            }
+        }
+        return stats;
+    }
+
+    // Display list of active users in the chat room
+    public void displayActiveUsers() {
+        System.out.println("Active users in " + roomId + ":");
+        for (User user : users) {
+            System.out.println(user.getName());
+        }
+    }
+
+    // Retire the room once it has been empty for the idle timeout; a retired room accepts no joins
+    boolean retireIfIdle(long nowNanos, long idleTimeoutNanos) {
+        return nowNanos - lastActivityNanos >= idleTimeoutNanos && holds.compareAndSet(0, -1);
+    }
+
+    // Retire however many members are left, once sends under way have finished; members are
+    // dropped without a leave notice
+    void retire() {
+        for (User user : users) {
+            leave(user, false);
+        }
+        while (!holds.compareAndSet(0, -1)) {
+            if (holds.get() < 0) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    public boolean isClosed() {
+        return holds.get() < 0;
+    }
+
+    public int getMemberCount() {
+        return users.size();
+    }
+
+    // Flush and release the room's log and history; the log goes first, since committing what it
+    // still holds appends to the history
+    void close() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } finally {
+            messageHistory.close();
+        }
+    }
+
+    // Get the room ID
+    public String getRoomId() {
+        return roomId;
+    }
+
+    // Retrieve a read-only page of message history, starting at a sequence number
+    public List<ChatMessage> getMessageHistory(long fromSeq, int limit) {
+        return messageHistory.read(fromSeq, limit);
+    }
+
+    public long getHistorySize() {
+        return messageHistory.size();
+    }
+}
+
+// User whose deliveries are written to its session's connection instead of the console
+class SessionUser extends User {
+    private final LoopbackConnection connection;
+
+    public SessionUser(String name, LoopbackConnection connection) {
+        super(name);
+        this.connection = connection;
+    }
+
+    @Override
+    public void update(String message) {
+        connection.push(message);
+    }
+}
+
+// In-process stand-in for a client socket, so sessions can be load tested on one machine
+class LoopbackConnection {
+    private final BlockingQueue<String> outbound;
+    private final LongAdder dropped = new LongAdder();
+    private volatile Session session;
+    private volatile boolean open = true;
+
+    public LoopbackConnection(int outboundCapacity) {
+        this.outbound = new LinkedBlockingQueue<>(outboundCapacity);
+    }
+
+    void bind(Session session) {
+        this.session = session;
+    }
+
+    // Client side: send a line to the server; false if the server is behind and the line was
+    // not taken, so the client should back off and resend it
+    public boolean send(String line) {
+        if (!open) {
+            throw new IllegalStateException("Connection closed");
+        }
+        return session.receive(line);
+    }
+
+    // Client side: wait for the next line from the server
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return outbound.poll(timeout, unit);
+    }
+
+    // Server side: write a line to the client. Like DROP_NEWEST delivery, a line that does not fit
+    // is dropped and counted, and what the client already has is left in order.
+    void push(String line) {
+        if (open && !outbound.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    // Lines the client never got because it was not reading fast enough
+    public long getDroppedLines() {
+        return dropped.sum();
+    }
+
+    void close() {
+        open = false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+}
+
+// A connected user: inbound lines are processed one at a time on the session runtime's workers
+class Session extends SerialWorker<String> {
+    public static final String LEAVE_COMMAND = "/leave";
+
+    private final long id;
+    private final SessionRuntime runtime;
+    private final LoopbackConnection connection;
+    private final SessionUser user;
+    private final LongAdder rejected = new LongAdder();
+    private volatile ChatRoom chatRoom;
+
+    Session(long id, SessionRuntime runtime, String userName, int queueCapacity) {
+        super(new LinkedBlockingQueue<>(queueCapacity), runtime.getEngine());
+        this.id = id;
+        this.runtime = runtime;
+        this.connection = new LoopbackConnection(queueCapacity);
+        this.user = new SessionUser(userName, connection);
+        connection.bind(this);
+    }
+
+    void attach(ChatRoom chatRoom) {
+        this.chatRoom = chatRoom;
+    }
+
+    // A full inbound queue turns the line away rather than displacing lines already accepted
+    boolean receive(String line) {
+        if (enqueue(line)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    @Override
+    protected void process(String line) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        if (LEAVE_COMMAND.equals(line)) {
+            runtime.close(this);
+        } else {
+            user.sendMessage(chatRoom, line);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public ChatRoom getChatRoom() {
+        return chatRoom;
+    }
+
+    public LoopbackConnection getConnection() {
+        return connection;
+    }
+
+    // Inbound lines turned away because the session was behind
+    public long getRejectedLines() {
+        return rejected.sum();
+    }
+}
+
+// Owns all live sessions; sessions only occupy a worker while they have input to process
+class SessionRuntime {
+    private static final SessionRuntime SHARED = new SessionRuntime(
+            new DeliveryEngine(Runtime.getRuntime().availableProcessors(), 1), 256, ChatRoomManager.getInstance());
+
+    private final DeliveryEngine engine;
+    private final int queueCapacity;
+    private final ChatRoomManager chatRoomManager;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    public SessionRuntime(DeliveryEngine engine, int queueCapacity, ChatRoomManager chatRoomManager) {
+        this.engine = engine;
+        this.queueCapacity = queueCapacity;
+        this.chatRoomManager = chatRoomManager;
+    }
+
+    public static SessionRuntime shared() {
+        return SHARED;
+    }
+
+    public Session open(String userName, String roomId) {
+        Session session = new Session(nextId.getAndIncrement(), this, userName, queueCapacity);
+        sessions.put(session.getId(), session);
+        session.attach(chatRoomManager.joinRoom(roomId, session.getUser()));
+        return session;
+    }
+
+    public void close(Session session) {
+        if (sessions.remove(session.getId()) != null) {
+            session.getConnection().close();
+            session.getChatRoom().leave(session.getUser());
+        }
+    }
+
+    public Session getSession(long id) {
+        return sessions.get(id);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    DeliveryEngine getEngine() {
+        return engine;
+    }
+}
+
+// Singleton Pattern: Manages all chat rooms
+class ChatRoomManager {
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int CREATION_STRIPES = 64;
+
+    // Holder idiom: the JVM creates the instance lazily and exactly once
+    private static class Holder {
+        static final ChatRoomManager INSTANCE = new ChatRoomManager(DEFAULT_IDLE_TIMEOUT_MILLIS,
+                System.getProperty("chat.log.dir") == null ? null : Paths.get(System.getProperty("chat.log.dir")),
+                System.getProperty("chat.history.dir") == null ? SegmentedHistoryStore.DEFAULT_DIRECTORY
+                        : Paths.get(System.getProperty("chat.history.dir")));
+    }
+
+    private final Map<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+    private final Object[] creationLocks = new Object[CREATION_STRIPES];
+    private final long idleTimeoutNanos;
+    private final Path logDirectory;
+    private final Path historyDirectory;
+    private final ScheduledExecutorService sweeper;
+    private volatile boolean closed;
+
+    ChatRoomManager(long idleTimeoutMillis) {
+        this(idleTimeoutMillis, null);
+    }
+
+    ChatRoomManager(long idleTimeoutMillis, Path logDirectory) {
+        this(idleTimeoutMillis, logDirectory, SegmentedHistoryStore.DEFAULT_DIRECTORY);
+    }
+
+    // Rooms are only made durable when a log directory is given; spilled history goes to historyDirectory
+    ChatRoomManager(long idleTimeoutMillis, Path logDirectory, Path historyDirectory) {
+        this.logDirectory = logDirectory;
+        this.historyDirectory = historyDirectory;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        for (int i = 0; i < creationLocks.length; i++) {
+            creationLocks[i] = new Object();
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-room-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::evictIdleRooms, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static ChatRoomManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // Rooms are created under a striped lock so construction never blocks unrelated rooms
+    public ChatRoom getChatRoom(String roomId) {
+        ChatRoom chatRoom = chatRooms.get(roomId);
+        if (chatRoom != null) {
+            return chatRoom;
+        }
+        synchronized (creationLocks[Math.floorMod(roomId.hashCode(), creationLocks.length)]) {
+            chatRoom = chatRooms.get(roomId);
+            if (chatRoom == null) {
+                if (closed) {
+                    throw new IllegalStateException("Chat room manager has been closed");
+                }
+                chatRoom = createChatRoom(roomId);
+                chatRooms.put(roomId, chatRoom);
+            }
+            return chatRoom;
+        }
+    }
+
+    // A room without a log picks up the history its evicted predecessor flushed; a logged room
+    // starts empty because replaying the log refills it
+    private ChatRoom createChatRoom(String roomId) {
+        if (logDirectory == null) {
+            return new ChatRoom(roomId, DeliveryEngine.shared(), new SegmentedHistoryStore(roomId, historyDirectory, true));
+        }
+        HistoryStore history = new SegmentedHistoryStore(roomId, historyDirectory, false);
+        ChatLog log = ChatLog.open(logDirectory, roomId, history::append);
+        return new ChatRoom(roomId, DeliveryEngine.shared(), history, log);
+    }
+
+    // Reopen every logged room at startup, replaying the logs in parallel
+    public int recoverRooms() {
+        if (logDirectory == null || !Files.isDirectory(logDirectory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(logDirectory)) {
+            List<Path> logs = files.filter(file -> file.toString().endsWith(ChatLog.EXTENSION))
+                    .collect(Collectors.toList());
+            logs.parallelStream().forEach(file -> getChatRoom(ChatLog.readRoomId(file)));
+            return logs.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list chat logs in " + logDirectory, e);
+        }
+    }
+
+    // The room if it is open, without creating it; leaving or announcing to a room that is gone
+    // must not bring it back
+    public ChatRoom findChatRoom(String roomId) {
+        return chatRooms.get(roomId);
+    }
+
+    // Join a room, retrying if the room is evicted between lookup and join
+    public ChatRoom joinRoom(String roomId, User user) {
+        return joinRoom(roomId, user, DeliveryPolicy.DROP_OLDEST);
+    }
+
+    public ChatRoom joinRoom(String roomId, User user, DeliveryPolicy policy) {
+        while (true) {
+            ChatRoom chatRoom = getChatRoom(roomId);
+            if (chatRoom.tryJoin(user, policy)) {
+                return chatRoom;
+            }
+            discardRetired(chatRoom);
+        }
+    }
+
+    // Join without the join notice, e.g. for a relay standing in for another node
+    ChatRoom subscribe(String roomId, User user) {
+        while (true) {
+            ChatRoom chatRoom = getChatRoom(roomId);
+            if (chatRoom.trySubscribe(user)) {
+                return chatRoom;
+            }
+            discardRetired(chatRoom);
+        }
+    }
+
+    // Send to a room, retrying if the room is evicted between lookup and send
+    public ChatRoom sendMessage(String roomId, User sender, String message) {
+        return sendMessage(roomId, sender.getName(), message);
+    }
+
+    ChatRoom sendMessage(String roomId, String senderName, String message) {
+        while (true) {
+            ChatRoom chatRoom = getChatRoom(roomId);
+            if (chatRoom.trySendMessage(senderName, message)) {
+                return chatRoom;
+            }
+            discardRetired(chatRoom);
+        }
+    }
+
+    // The sweeper may still be flushing the retired room; its replacement must see the whole file
+    private void discardRetired(ChatRoom chatRoom) {
+        closeRetired(chatRoom);
+        chatRooms.remove(chatRoom.getRoomId(), chatRoom);
+    }
+
+    // Drop rooms that have had no members for the idle timeout, flushing their history first
+    public int evictIdleRooms() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (ChatRoom chatRoom : chatRooms.values()) {
+            if (chatRoom.retireIfIdle(now, idleTimeoutNanos)) {
+                closeRetired(chatRoom);
+                chatRooms.remove(chatRoom.getRoomId(), chatRoom);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    // Closing is idempotent and waits for a close already under way
+    private static void closeRetired(ChatRoom chatRoom) {
+        try {
+            chatRoom.close();
+        } catch (RuntimeException e) {
+            System.out.println("Failed to flush history of " + chatRoom.getRoomId() + ": " + e.getMessage());
+        }
+    }
+
+    public int getRoomCount() {
+        return chatRooms.size();
+    }
+
+    // Stop the sweeper and retire and flush every room; no rooms can be created afterwards
+    public void close() {
+        closed = true;
+        sweeper.shutdown();
+        // Wait out creations that checked the flag before it was set
+        for (Object creationLock : creationLocks) {
+            synchronized (creationLock) {
+            }
+        }
+        for (ChatRoom chatRoom : chatRooms.values()) {
+            chatRoom.retire();
+            closeRetired(chatRoom);
+            chatRooms.remove(chatRoom.getRoomId(), chatRoom);
+        }
+    }
+}
+
+// Maps room ids onto nodes; each node owns many points on the ring so load spreads evenly
+class ConsistentHashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final NavigableMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    public void addNode(String nodeId) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(nodeId + "#" + i), nodeId);
+        }
+    }
+
+    // Only the rooms owned by the removed node move; everything else keeps its owner
+    public void removeNode(String nodeId) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.remove(hash(nodeId + "#" + i), nodeId);
+        }
+    }
+
+    public String ownerOf(String roomId) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(roomId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // FNV-1a followed by the MurmurHash3 finaliser, so similar ids land far apart
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// Message passed between nodes; senders travel by name
+class RelayEnvelope {
+    enum Type {
+        SUBSCRIBE,   // A node wants the room's messages for its local users
+        UNSUBSCRIBE,
+        JOIN,        // A user on another node joined or left the room
+        LEAVE,
+        SEND,        // A user on another node sent a message
+        DELIVER      // The owner relays a room message to a subscribed node
+    }
+
+    private final Type type;
+    private final String roomId;
+    private final String fromNode;
+    private final String userName;
+    private final long timestamp;
+    private final byte[] body;
+
+    RelayEnvelope(Type type, String roomId, String fromNode, String userName, long timestamp, byte[] body) {
+        this.type = type;
+        this.roomId = roomId;
+        this.fromNode = fromNode;
+        this.userName = userName;
+        this.timestamp = timestamp;
+        this.body = body;
+    }
+
+    static RelayEnvelope of(Type type, String roomId, String fromNode, String userName) {
+        return new RelayEnvelope(type, roomId, fromNode, userName, 0, new byte[0]);
+    }
+
+    static RelayEnvelope deliver(String roomId, String fromNode, ChatMessage message) {
+        String sender = message.isSystem() ? "" : message.getSenderName();
+        return new RelayEnvelope(Type.DELIVER, roomId, fromNode, sender, message.getTimestamp(), message.getBody());
+    }
+
+    ChatMessage toMessage() {
+        return new ChatMessage(userName.isEmpty() ? null : userName, timestamp, body);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getFromNode() {
+        return fromNode;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
+
+// Carries envelopes between nodes; a socket or broker transport would implement the same contract
+interface ChatTransport {
+    void register(String nodeId, Consumer<RelayEnvelope> inbox);
+
+    void send(String nodeId, RelayEnvelope envelope);
+}
+
+// Local pub/sub stand-in: every node's inbox is a serial queue, so envelopes between two nodes stay in order
+class InProcessTransport implements ChatTransport {
+    private final DeliveryEngine engine;
+    private final Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+
+    private static class Inbox extends SerialWorker<RelayEnvelope> {
+        private final Consumer<RelayEnvelope> handler;
+
+        Inbox(DeliveryEngine engine, Consumer<RelayEnvelope> handler) {
+            super(new ConcurrentLinkedQueue<>(), engine);
+            this.handler = handler;
+        }
+
+        @Override
+        protected void process(RelayEnvelope envelope) {
+            try {
+                handler.accept(envelope);
+            } catch (RuntimeException e) {
+                System.out.println("Relay of " + envelope.getType() + " for " + envelope.getRoomId()
+                        + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public InProcessTransport(DeliveryEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void register(String nodeId, Consumer<RelayEnvelope> inbox) {
+        inboxes.put(nodeId, new Inbox(engine, inbox));
+    }
+
+    @Override
+    public void send(String nodeId, RelayEnvelope envelope) {
+        Inbox inbox = inboxes.get(nodeId);
+        if (inbox == null) {
+            throw new IllegalArgumentException("Unknown node " + nodeId);
+        }
+        inbox.enqueue(envelope);
+    }
+}
+
+// One member of a chat cluster. Rooms live on the node the ring assigns them to; other nodes keep a
+// mirror room for their local users and relay joins, leaves and sends to the owner.
+class ChatNode {
+    // Stands in for a whole remote node inside the owner's room
+    private class RelayUser extends User {
+        private final String roomId;
+        private final String targetNode;
+
+        RelayUser(String roomId, String targetNode) {
+            super("relay:" + targetNode);
+            this.roomId = roomId;
+            this.targetNode = targetNode;
+        }
+
+        @Override
+        public void update(String message) {
+        }
+
+        @Override
+        public void update(ChatMessage message) {
+            transport.send(targetNode, RelayEnvelope.deliver(roomId, nodeId, message));
+        }
+    }
+
+    private final String nodeId;
+    private final ChatRoomManager chatRoomManager;
+    private final ConsistentHashRing ring;
+    private final ChatTransport transport;
+    private final Map<String, ChatRoom> mirrors = new ConcurrentHashMap<>();
+    private final Map<String, RelayUser> relays = new ConcurrentHashMap<>();
+
+    public ChatNode(String nodeId, ChatRoomManager chatRoomManager, ConsistentHashRing ring, ChatTransport transport) {
+        this.nodeId = nodeId;
+        this.chatRoomManager = chatRoomManager;
+        this.ring = ring;
+        this.transport = transport;
+        transport.register(nodeId, this::receive);
+    }
+
+    public boolean owns(String roomId) {
+        return ring.ownerOf(roomId).equals(nodeId);
+    }
+
+    public void join(String roomId, User user) {
+        String owner = ring.ownerOf(roomId);
+        if (owner.equals(nodeId)) {
+            chatRoomManager.joinRoom(roomId, user);
+            return;
+        }
+        ChatRoom mirror = mirrors.compute(roomId, (id, existing) -> {
+            if (existing == null) {
+                existing = new ChatRoom(id, DeliveryEngine.shared(), new InMemoryHistoryStore());
+                transport.send(owner, RelayEnvelope.of(RelayEnvelope.Type.SUBSCRIBE, id, nodeId, ""));
+            }
+            existing.subscribe(user);
+            return existing;
+        });
+        transport.send(owner, RelayEnvelope.of(RelayEnvelope.Type.JOIN, mirror.getRoomId(), nodeId, user.getName()));
+    }
+
+    public void leave(String roomId, User user) {
+        String owner = ring.ownerOf(roomId);
+        if (owner.equals(nodeId)) {
+            ChatRoom chatRoom = chatRoomManager.findChatRoom(roomId);
+            if (chatRoom != null) {
+                chatRoom.leave(user);
+            }
+            return;
+        }
+        // Unsubscribe before telling the owner, so the user does not get its own leave notice back
+        mirrors.computeIfPresent(roomId, (id, mirror) -> {
+            mirror.unsubscribe(user);
+            transport.send(owner, RelayEnvelope.of(RelayEnvelope.Type.LEAVE, id, nodeId, user.getName()));
+            if (mirror.getMemberCount() > 0) {
+                return mirror;
+            }
+            transport.send(owner, RelayEnvelope.of(RelayEnvelope.Type.UNSUBSCRIBE, id, nodeId, ""));
+            return null;
+        });
+    }
+
+    public void sendMessage(String roomId, User sender, String message) {
+        String owner = ring.ownerOf(roomId);
+        if (owner.equals(nodeId)) {
+            chatRoomManager.sendMessage(roomId, sender, message);
+        } else {
+            transport.send(owner, new RelayEnvelope(RelayEnvelope.Type.SEND, roomId, nodeId, sender.getName(),
+                    System.currentTimeMillis(), message.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private void receive(RelayEnvelope envelope) {
+        String roomId = envelope.getRoomId();
+        String relayKey = roomId + "@" + envelope.getFromNode();
+        switch (envelope.getType()) {
+            case SUBSCRIBE -> relays.computeIfAbsent(relayKey, key -> {
+                RelayUser relay = new RelayUser(roomId, envelope.getFromNode());
+                chatRoomManager.subscribe(roomId, relay);
+                return relay;
+            });
+            case UNSUBSCRIBE -> {
+                RelayUser relay = relays.remove(relayKey);
+                ChatRoom chatRoom = chatRoomManager.findChatRoom(roomId);
+                if (relay != null && chatRoom != null) {
+                    chatRoom.unsubscribe(relay);
+                }
+            }
+            case JOIN -> announce(roomId, envelope.getUserName() + " has joined the chat room.");
+            case LEAVE -> announce(roomId, envelope.getUserName() + " has left the chat room.");
+            case SEND -> chatRoomManager.sendMessage(roomId, envelope.getUserName(), envelope.getText());
+            case DELIVER -> {
+                ChatRoom mirror = mirrors.get(roomId);
+                if (mirror != null) {
+                    mirror.publish(envelope.toMessage());
+                }
+            }
+        }
+    }
+
+    // A room that is gone has no members left to tell
+    private void announce(String roomId, String notice) {
+        ChatRoom chatRoom = chatRoomManager.findChatRoom(roomId);
+        if (chatRoom != null) {
+            chatRoom.tryPublish(ChatMessage.system(notice));
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ChatRoomManager getChatRoomManager() {
+        return chatRoomManager;
+    }
+}
+
+// A set of nodes sharing one ring and transport, all in this JVM
+class ChatCluster {
+    private final List<ChatNode> nodes = new ArrayList<>();
+
+    public ChatCluster(int nodeCount, long idleTimeoutMillis) {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ChatTransport transport = new InProcessTransport(DeliveryEngine.shared());
+        for (int i = 0; i < nodeCount; i++) {
+            ring.addNode("node-" + i);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add(new ChatNode("node-" + i, new ChatRoomManager(idleTimeoutMillis), ring, transport));
+        }
+    }
+
+    public ChatNode node(int index) {
+        return nodes.get(index);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    // Close every node's rooms and stop their sweepers
+    public void close() {
+        for (ChatNode node : nodes) {
+            node.getChatRoomManager().close();
+        }
+    }
+}
+
+// Adapter Pattern: Example of an adapter to handle WebSocket communication
+class WebSocketAdapter {
+    private ChatRoomManager chatRoomManager = ChatRoomManager.getInstance();
+    private SessionRuntime sessionRuntime = SessionRuntime.shared();
+
+    // Open a session for the user; its connection is the client's end of the socket
+    public Session connectUserToRoom(String userName, String roomId) {
+        return sessionRuntime.open(userName, roomId);
+    }
+
+    public void disconnect(Session session) {
+        sessionRuntime.close(session);
+    }
+
+    public void disconnectUserFromRoom(User user, String roomId) {
+        ChatRoom chatRoom = chatRoomManager.findChatRoom(roomId);
+        if (chatRoom != null) {
+            chatRoom.leave(user);
+        }
+    }
+
+    // Goes through the manager, so a room evicted after lookup is replaced rather than failing the send
+    public void sendMessageToRoom(User user, String roomId, String message) {
+        chatRoomManager.sendMessage(roomId, user, message);
+    }
+
+    private static final int HISTORY_PAGE_SIZE = 100;
+
+    public void displayChatHistory(String roomId) {
+        displayChatHistory(roomId, 0, Long.MAX_VALUE);
+    }
+
+    // Print history page by page so long-lived rooms are never loaded in one go
+    public void displayChatHistory(String roomId, long fromSeq, long maxMessages) {
+        ChatRoom chatRoom = chatRoomManager.getChatRoom(roomId);
+        System.out.println("Chat history for room " + roomId + ":");
+        long seq = fromSeq;
+        long remaining = maxMessages;
+        while (remaining > 0) {
+            List<ChatMessage> page = chatRoom.getMessageHistory(seq, (int) Math.min(HISTORY_PAGE_SIZE, remaining));
+            if (page.isEmpty()) {
+                break;
+            }
+            for (ChatMessage message : page) {
+                System.out.println(message.format());
+            }
+            seq += page.size();
+            remaining -= page.size();
+        }
+    }
+}
+
+// Log-linear latency histogram for the fan-out benchmark (about 6% precision) that many threads can record into
+class FanOutLatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE * SUB_BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(nanos, 0)));
+    }
+
+    private static int indexOf(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+        if (magnitude < 4) {
+            return (int) value;
+        }
+        return magnitude * SUB_BUCKETS + (int) ((value >>> (magnitude - 4)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBoundOf(int index) {
+        int magnitude = index / SUB_BUCKETS;
+        return magnitude < 4 ? index : (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - 4);
+    }
+
+    // Largest value that lands in the bucket
+    private long upperBoundOf(int index) {
+        return index + 1 < counts.length() ? lowerBoundOf(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // Reported as the bucket's upper bound, so a percentile is never understated
+    public long percentile(double percentile) {
+        long rank = (long) Math.ceil(getCount() * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+}
+
+// Benchmark of the chat fan-out path: send throughput, send and delivery p99, allocation per send.
+// Usage: ChatFanOutBenchmark [roomSizes] [observerMicros] [senderThreads], each a comma-separated list
+class ChatFanOutBenchmark {
+    private static final long DELIVERIES_PER_RUN = 2_000_000;
+    private static final long OBSERVER_NANOS_PER_RUN = TimeUnit.SECONDS.toNanos(2);
+
+    // Observer that records how long each message took to reach it. Messages carry their index
+    // into sentAt as text, read straight from the body so a delivery allocates nothing.
+    private static class TimingUser extends User {
+        private final FanOutLatencyHistogram deliveryLatency;
+        private final long[] sentAt;
+        private final long spinNanos;
+
+        TimingUser(String name, FanOutLatencyHistogram deliveryLatency, long[] sentAt, long spinNanos) {
+            super(name);
+            this.deliveryLatency = deliveryLatency;
+            this.sentAt = sentAt;
+            this.spinNanos = spinNanos;
+        }
+
+        @Override
+        public void update(ChatMessage message) {
+            long now = System.nanoTime();
+            deliveryLatency.record(now - sentAt[indexOf(message.getBody())]);
+            while (System.nanoTime() - now < spinNanos) {
+                Thread.onSpinWait(); // Simulate a slow client
+            }
+        }
+
+        private static int indexOf(byte[] digits) {
+            int index = 0;
+            for (byte digit : digits) {
+                index = index * 10 + (digit - '0');
+            }
+            return index;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] roomSizes = parse(args, 0, "1,100,10000,100000");
+        int[] observerMicros = parse(args, 1, "0,20");
+        int[] senderThreads = parse(args, 2, "1,4");
+        System.out.printf("%8s %6s %7s %12s %12s %14s %14s %12s%n", "observers", "obs_us", "threads",
+                "sends/s", "deliveries/s", "send_p99_us", "deliver_p99_us", "bytes/send");
+        for (int roomSize : roomSizes) {
+            for (int micros : observerMicros) {
+                for (int threads : senderThreads) {
+                    run(roomSize, micros, threads, true);
+                    run(roomSize, micros, threads, false);
+                }
+            }
+        }
+    }
+
+    private static void run(int roomSize, int observerMicros, int threads, boolean warmup) throws Exception {
+        int workers = Runtime.getRuntime().availableProcessors();
+        long deliveries = DELIVERIES_PER_RUN;
+        if (observerMicros > 0) {
+            // Keep slow-observer runs to a few seconds of simulated client work
+            deliveries = Math.min(deliveries, OBSERVER_NANOS_PER_RUN * workers / (observerMicros * 1000L));
+        }
+        int messages = (int) Math.max(threads, Math.min(100_000, deliveries / roomSize));
+        if (warmup) {
+            messages = Math.max(threads, messages / 5);
+        }
+        DeliveryEngine engine = new DeliveryEngine(workers, 1 << 16);
+        ChatRoom room = new ChatRoom("bench", engine, new InMemoryHistoryStore());
+        FanOutLatencyHistogram sendLatency = new FanOutLatencyHistogram();
+        FanOutLatencyHistogram deliveryLatency = new FanOutLatencyHistogram();
+        int perThread = messages / threads;
+        // Send times are kept out of band; the texts are built up front so sending allocates only the message
+        long[] sentAt = new long[perThread * threads];
+        String[] texts = new String[sentAt.length];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = Integer.toString(i);
+        }
+        for (int i = 0; i < roomSize; i++) {
+            room.subscribe(new TimingUser("observer" + i, deliveryLatency, sentAt, observerMicros * 1000L));
+        }
+        User sender = new User("bench");
+        ExecutorService senders = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            done.add(senders.submit(() -> {
+                start.await();
+                for (int i = first; i < first + perThread; i++) {
+                    // Written before the send, so the mailbox hand-off publishes it to the observers
+                    sentAt[i] = System.nanoTime();
+                    room.sendMessage(sender, texts[i]);
+                    sendLatency.record(System.nanoTime() - sentAt[i]);
+                }
+                return null;
+            }));
+        }
+        long allocatedBefore = allocatedBytes();
+        long began = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        long sendNanos = System.nanoTime() - began;
+        engine.awaitQuiescence(TimeUnit.MINUTES.toMillis(5));
+        long totalNanos = System.nanoTime() - began;
+        long allocated = allocatedBytes() - allocatedBefore;
+        senders.shutdown();
+        engine.shutdown();
+        if (warmup) {
+            return;
+        }
+        long sent = (long) perThread * threads;
+        System.out.printf("%8d %6d %7d %12.0f %12.0f %14.1f %14.1f %12d%n", roomSize, observerMicros, threads,
+                sent * 1e9 / sendNanos, deliveryLatency.getCount() * 1e9 / totalNanos,
+                sendLatency.percentile(99) / 1000.0, deliveryLatency.percentile(99) / 1000.0,
+                allocated < 0 ? -1 : allocated / sent);
+    }
+
+    // Bytes allocated so far by all live threads, or -1 when the JVM cannot tell
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    private static int[] parse(String[] args, int index, String defaults) {
+        String value = args.length > index ? args[index] : defaults;
+        return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
+
+// Main class to simulate the chat application
+public class ChatApplication {
+    public static void main(String[] args) {
+        // Initialize WebSocket adapter (can be extended to different communication protocols)
+        WebSocketAdapter webSocketAdapter = new WebSocketAdapter();
+
+        // Simulate users joining a chat room; each gets its own session
+        String roomId = "Room123";
+        Session aliceSession = webSocketAdapter.connectUserToRoom("Alice", roomId);
+        Session bobSession = webSocketAdapter.connectUserToRoom("Bob", roomId);
+
+        // Alice and Bob send messages through their connections
+        aliceSession.getConnection().send("Hello, everyone!");
+        bobSession.getConnection().send("Hi, Alice!");
+
+        // Read what Alice's client received
+        try {
+            SessionRuntime.shared().getEngine().awaitQuiescence(1000);
+            DeliveryEngine.shared().awaitQuiescence(1000);
+            String line;
+            while ((line = aliceSession.getConnection().poll(10, TimeUnit.MILLISECONDS)) != null) {
+                System.out.println("Alice's client received: " + line);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Display chat history
+        webSocketAdapter.displayChatHistory(roomId);
+
+        // Bob leaves the chat room
+        webSocketAdapter.disconnect(bobSession);
+
+        // A full batch goes out at once instead of waiting out the flush window
+        DeliveryEngine batched = new DeliveryEngine(1, 64, new BatchPolicy(TimeUnit.MINUTES.toMillis(1), 4));
+        ChatRoom batchRoom = new ChatRoom("Batched", batched, new InMemoryHistoryStore());
+        CountDownLatch batchArrived = new CountDownLatch(1);
+        batchRoom.subscribe(new User("Carol") {
+            @Override
+            public void updateBatch(List<ChatMessage> messages) {
+                super.updateBatch(messages);
+                batchArrived.countDown();
+            }
+        });
+        User dave = new User("Dave");
+        for (int i = 1; i <= 4; i++) {
+            batchRoom.sendMessage(dave, "Batched message " + i);
+        }
+
+        // Let the delivery workers finish before the JVM exits
+        try {
+            if (!batchArrived.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("A full batch was held back for the flush window");
+            }
+            DeliveryEngine.shared().awaitQuiescence(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
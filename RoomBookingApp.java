@@ -1,209 +1,1494 @@
-import java.util.*;
-
-// Direction Enum for Rover's Facing Direction
-enum Direction {
-    NORTH, EAST, SOUTH, WEST;
-    
-    public Direction left() {
-        return values()[(this.ordinal() + 3) % 4]; // Rotate counter-clockwise
-    }
-    
-    public Direction right() {
-        return values()[(this.ordinal() + 1) % 4]; // Rotate clockwise
-    }
-}
-
-// Position Class to track Rover's Coordinates
-class Position {
-    private int x;
-    private int y;
-    
-    public Position(int x, int y) {
-        this.x = x;
-        this.y = y;
-    }
-    
-    public int getX() {
-        return x;
-    }
-    
-    public int getY() {
-        return y;
-    }
-    
-    public void moveForward(Direction direction) {
-        switch (direction) {
-            case NORTH -> y++;
-            case SOUTH -> y--;
-            case EAST -> x++;
-            case WEST -> x--;
-        }
-    }
-    
-    public boolean isWithinGrid(int gridWidth, int gridHeight) {
-        return x >= 0 && x < gridWidth && y >= 0 && y < gridHeight;
-    }
-    
-    @Override
-    public String toString() {
-        return "(" + x + ", " + y + ")";
-    }
-}
-
-// Grid Class to represent terrain and obstacles
-class Grid {
-    private int width;
-    private int height;
-    private Set<Position> obstacles;
-
-    public Grid(int width, int height, List<Position> obstacles) {
-        this.width = width;
-        this.height = height;
-        this.obstacles = new HashSet<>(obstacles);
-    }
-
-    public boolean isObstacle(Position position) {
-        return obstacles.contains(position);
-    }
-
-    public boolean isWithinBounds(Position position) {
-        return position.isWithinGrid(width, height);
-    }
-}
-
-// Rover Class to manage rover's state and movements
-class Rover {
-    private Position position;
-    private Direction direction;
-    private Grid grid;
-
-    public Rover(Position startPosition, Direction startDirection, Grid grid) {
-        this.position = startPosition;
-        this.direction = startDirection;
-        this.grid = grid;
-    }
-
-    public void turnLeft() {
-        this.direction = direction.left();
-    }
-
-    public void turnRight() {
-        this.direction = direction.right();
-    }
-
-    public void moveForward() {
-        Position newPosition = new Position(position.getX(), position.getY());
-        newPosition.moveForward(direction);
-
-        if (grid.isWithinBounds(newPosition) && !grid.isObstacle(newPosition)) {
-            position = newPosition;
-        } else {
-            System.out.println("Obstacle detected or out of bounds. Can't move.");
-        }
-    }
-
-    public void reportStatus() {
-        System.out.println("Rover is at " + position + " facing " + direction + ".");
-    }
-
-    public Position getPosition() {
-        return position;
-    }
-
-    public Direction getDirection() {
-        return direction;
-    }
-}
-
-// Command interface for encapsulating commands
-interface Command {
-    void execute();
-}
-
-// Move Command
-class MoveCommand implements Command {
-    private Rover rover;
-
-    public MoveCommand(Rover rover) {
-        this.rover = rover;
-    }
-
-    @Override
-    public void execute() {
-        rover.moveForward();
-    }
-}
-
-// Turn Left Command
-class TurnLeftCommand implements Command {
-    private Rover rover;
-
-    public TurnLeftCommand(Rover rover) {
-        this.rover = rover;
-    }
-
-    @Override
-    public void execute() {
-        rover.turnLeft();
-    }
-}
-
-// Turn Right Command
-class TurnRightCommand implements Command {
-    private Rover rover;
-
-    public TurnRightCommand(Rover rover) {
-        this.rover = rover;
-    }
-
-    @Override
-    public void execute() {
-        rover.turnRight();
-    }
-}
-
-// MarsRoverController to process commands
-class MarsRoverController {
-    private Map<Character, Command> commandMap;
-
-    public MarsRoverController(Rover rover) {
-        commandMap = new HashMap<>();
-        commandMap.put('M', new MoveCommand(rover));
-        commandMap.put('L', new TurnLeftCommand(rover));
-        commandMap.put('R', new TurnRightCommand(rover));
-    }
-
-    public void processCommands(String commands) {
-        for (char command : commands.toCharArray()) {
-            Command cmd = commandMap.get(command);
-            if (cmd != null) {
-                cmd.execute();
-            }
-        }
-    }
-}
-
-// Main class for simulation
-public class MarsRoverSimulation {
-
-    public static void main(String[] args) {
-        // Define obstacles
-        List<Position> obstacles = List.of(new Position(2, 2), new Position(3, 5));
-
-        // Create a 10x10 grid
-        Grid grid = new Grid(10, 10, obstacles);
-
-        // Initialize Rover at position (0, 0) facing North
-        Rover rover = new Rover(new Position(0, 0), Direction.NORTH, grid);
-
-        // Create Mars Rover Controller with commands
-        MarsRoverController controller = new MarsRoverController(rover);
-
-        // Simulate commands
-        String commands = "MMRMMLM";
-        controller.processCommands(commands);
-
-        // Report final status
-        rover.reportStatus();
-    }
-}
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntUnaryOperator;
+
+// Direction Enum for Rover's Facing Direction
+enum Direction {
+    NORTH, EAST, SOUTH, WEST;
+
+    // values() clones its array on every call
+    private static final Direction[] VALUES = values();
+    
+    public Direction left() {
+        return VALUES[(this.ordinal() + 3) % 4]; // Rotate counter-clockwise
+    }
+    
+    public Direction right() {
+        return VALUES[(this.ordinal() + 1) % 4]; // Rotate clockwise
+    }
+
+    // Clockwise for positive quarter turns, counter-clockwise for negative
+    public Direction rotate(int quarterTurns) {
+        return VALUES[(this.ordinal() + quarterTurns) & 3];
+    }
+}
+
+// Position Class to track Rover's Coordinates
+class Position {
+    private int x;
+    private int y;
+    
+    public Position(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+    
+    public int getX() {
+        return x;
+    }
+    
+    public int getY() {
+        return y;
+    }
+    
+    public void moveForward(Direction direction) {
+        switch (direction) {
+            case NORTH -> y++;
+            case SOUTH -> y--;
+            case EAST -> x++;
+            case WEST -> x--;
+        }
+    }
+    
+    public boolean isWithinGrid(int gridWidth, int gridHeight) {
+        return x >= 0 && x < gridWidth && y >= 0 && y < gridHeight;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Position)) {
+            return false;
+        }
+        Position that = (Position) other;
+        return x == that.x && y == that.y;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * x + y;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + x + ", " + y + ")";
+    }
+}
+
+// Grid Class to represent terrain and obstacles.
+// The grid is cut into 64x64-cell chunks, allocated on first use so open terrain costs one null
+// reference per chunk. A chunk with few obstacles keeps their sorted cell offsets; past
+// SPARSE_LIMIT it becomes a bitset of one long per row, and a solid chunk is shared.
+class Grid {
+    static final int CHUNK_BITS = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // Beyond this many cells a sorted short[] takes more room than the bitset
+    private static final int SPARSE_LIMIT = 128;
+    // Shared by every chunk that is all obstacle; copied before a bit in it is cleared
+    private static final long[] FULL = filledChunk();
+
+    private final int width;
+    private final int height;
+    private final int chunksX;
+    // Each entry is null, a sorted short[] of (y << 6 | x) offsets within the chunk, or a long[]
+    private final Object[] chunks;
+    private long obstacleCount;
+    // Bumped by every change, so derived data such as planner distance fields can tell it is stale
+    private long version;
+
+    public Grid(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Grid must have cells: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.chunksX = (width + CHUNK_MASK) >>> CHUNK_BITS;
+        long chunkCount = (long) chunksX * ((height + CHUNK_MASK) >>> CHUNK_BITS);
+        if (chunkCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Grid too large: " + width + "x" + height);
+        }
+        this.chunks = new Object[(int) chunkCount];
+    }
+
+    public Grid(int width, int height, List<Position> obstacles) {
+        this(width, height);
+        for (Position obstacle : obstacles) {
+            addObstacle(obstacle.getX(), obstacle.getY());
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isObstacle(Position position) {
+        return isObstacle(position.getX(), position.getY());
+    }
+
+    // Cells outside the grid are not obstacles; see isWithinBounds
+    public boolean isObstacle(int x, int y) {
+        if (!isWithinBounds(x, y)) {
+            return false;
+        }
+        Object chunk = chunks[chunkIndex(x, y)];
+        if (chunk == null) {
+            return false;
+        }
+        if (chunk instanceof long[]) {
+            return (((long[]) chunk)[y & CHUNK_MASK] & (1L << x)) != 0;
+        }
+        return Arrays.binarySearch((short[]) chunk, offset(x, y)) >= 0;
+    }
+
+    public boolean isWithinBounds(Position position) {
+        return isWithinBounds(position.getX(), position.getY());
+    }
+
+    public boolean isWithinBounds(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    // Inside the grid and clear of obstacles
+    public boolean isFree(int x, int y) {
+        return isWithinBounds(x, y) && !isObstacle(x, y);
+    }
+
+    public void addObstacle(int x, int y) {
+        requireWithinBounds(x, y);
+        int index = chunkIndex(x, y);
+        Object chunk = chunks[index];
+        if (chunk == null) {
+            chunks[index] = new short[] {offset(x, y)};
+            obstacleCount++;
+            version++;
+            return;
+        }
+        if (chunk instanceof short[]) {
+            short[] cells = (short[]) chunk;
+            int at = Arrays.binarySearch(cells, offset(x, y));
+            if (at >= 0) {
+                return;
+            }
+            if (cells.length < SPARSE_LIMIT) {
+                at = -at - 1;
+                short[] grown = new short[cells.length + 1];
+                System.arraycopy(cells, 0, grown, 0, at);
+                grown[at] = offset(x, y);
+                System.arraycopy(cells, at, grown, at + 1, cells.length - at);
+                chunks[index] = grown;
+                obstacleCount++;
+                version++;
+                return;
+            }
+        } else if (chunk == FULL) {
+            return;
+        }
+        long[] bits = bitset(index);
+        long before = bits[y & CHUNK_MASK];
+        if ((before & (1L << x)) == 0) {
+            setRow(index, bits, y & CHUNK_MASK, before | (1L << x));
+            obstacleCount++;
+            version++;
+        }
+    }
+
+    public void removeObstacle(int x, int y) {
+        requireWithinBounds(x, y);
+        int index = chunkIndex(x, y);
+        Object chunk = chunks[index];
+        if (chunk == null) {
+            return;
+        }
+        if (chunk instanceof short[]) {
+            short[] cells = (short[]) chunk;
+            int at = Arrays.binarySearch(cells, offset(x, y));
+            if (at < 0) {
+                return;
+            }
+            if (cells.length == 1) {
+                chunks[index] = null;
+            } else {
+                short[] shrunk = new short[cells.length - 1];
+                System.arraycopy(cells, 0, shrunk, 0, at);
+                System.arraycopy(cells, at + 1, shrunk, at, cells.length - at - 1);
+                chunks[index] = shrunk;
+            }
+            obstacleCount--;
+            version++;
+            return;
+        }
+        long[] bits = (long[]) chunk;
+        if ((bits[y & CHUNK_MASK] & (1L << x)) == 0) {
+            return;
+        }
+        if (bits == FULL) {
+            bits = filledChunk();
+            chunks[index] = bits;
+        }
+        bits[y & CHUNK_MASK] &= ~(1L << x);
+        obstacleCount--;
+        version++;
+    }
+
+    // Mark every cell of the rectangle, corners inclusive, up to a chunk row at a time
+    public void addObstacles(int fromX, int fromY, int toX, int toY) {
+        requireWithinBounds(fromX, fromY);
+        requireWithinBounds(toX, toY);
+        if (toX < fromX || toY < fromY) {
+            throw new IllegalArgumentException("Empty rectangle: " + fromX + "," + fromY + " to " + toX + "," + toY);
+        }
+        for (int y = fromY; y <= toY; y++) {
+            for (int chunkX = fromX >>> CHUNK_BITS; chunkX <= toX >>> CHUNK_BITS; chunkX++) {
+                int first = Math.max(fromX, chunkX << CHUNK_BITS) & CHUNK_MASK;
+                int last = Math.min(toX, (chunkX << CHUNK_BITS) + CHUNK_MASK) & CHUNK_MASK;
+                long mask = (-1L >>> (CHUNK_MASK - last + first)) << first;
+                int index = (y >>> CHUNK_BITS) * chunksX + chunkX;
+                if (chunks[index] == FULL) {
+                    continue;
+                }
+                long[] bits = bitset(index);
+                long before = bits[y & CHUNK_MASK];
+                obstacleCount += Long.bitCount(mask & ~before);
+                version++;
+                setRow(index, bits, y & CHUNK_MASK, before | mask);
+            }
+        }
+    }
+
+    public long getObstacleCount() {
+        return obstacleCount;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Heap used by the chunks, not counting the chunk table itself
+    public long allocatedBytes() {
+        long bytes = 0;
+        for (Object chunk : chunks) {
+            if (chunk instanceof short[]) {
+                bytes += (16 + 2L * ((short[]) chunk).length + 7) & ~7L;
+            } else if (chunk != null && chunk != FULL) {
+                bytes += 16 + 8L * CHUNK_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    // The chunk as a writable bitset, converting or allocating it as needed
+    private long[] bitset(int index) {
+        Object chunk = chunks[index];
+        long[] bits;
+        if (chunk instanceof long[]) {
+            bits = chunk == FULL ? filledChunk() : (long[]) chunk;
+        } else {
+            bits = new long[CHUNK_SIZE];
+            if (chunk != null) {
+                for (short cell : (short[]) chunk) {
+                    bits[cell >>> CHUNK_BITS] |= 1L << cell;
+                }
+            }
+        }
+        chunks[index] = bits;
+        return bits;
+    }
+
+    private void setRow(int index, long[] bits, int row, long value) {
+        bits[row] = value;
+        if (value == -1L && isFull(bits)) {
+            chunks[index] = FULL;
+        }
+    }
+
+    private int chunkIndex(int x, int y) {
+        return (y >>> CHUNK_BITS) * chunksX + (x >>> CHUNK_BITS);
+    }
+
+    private static short offset(int x, int y) {
+        return (short) (((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK));
+    }
+
+    private void requireWithinBounds(int x, int y) {
+        if (!isWithinBounds(x, y)) {
+            throw new IllegalArgumentException("Outside the " + width + "x" + height + " grid: (" + x + ", " + y + ")");
+        }
+    }
+
+    private static boolean isFull(long[] chunk) {
+        for (long row : chunk) {
+            if (row != -1L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] filledChunk() {
+        long[] chunk = new long[CHUNK_SIZE];
+        Arrays.fill(chunk, -1L);
+        return chunk;
+    }
+}
+
+// Rover Class to manage rover's state and movements.
+// The position is kept as plain coordinates, so moving allocates nothing.
+class Rover {
+    private int x;
+    private int y;
+    private Direction direction;
+    private Grid grid;
+
+    public Rover(Position startPosition, Direction startDirection, Grid grid) {
+        this.x = startPosition.getX();
+        this.y = startPosition.getY();
+        this.direction = startDirection;
+        this.grid = grid;
+    }
+
+    public void turnLeft() {
+        this.direction = direction.left();
+    }
+
+    public void turnRight() {
+        this.direction = direction.right();
+    }
+
+    // Clockwise for positive quarter turns, counter-clockwise for negative
+    public void turn(int quarterTurns) {
+        this.direction = direction.rotate(quarterTurns);
+    }
+
+    public void moveForward() {
+        moveForward(1);
+    }
+
+    // Move up to the given number of cells straight ahead. Once the way is blocked the rest of
+    // the moves fail in place, each reported as a single blocked move would be.
+    public void moveForward(int cells) {
+        int dx = 0;
+        int dy = 0;
+        switch (direction) {
+            case NORTH -> dy = 1;
+            case SOUTH -> dy = -1;
+            case EAST -> dx = 1;
+            case WEST -> dx = -1;
+        }
+        int moved = 0;
+        while (moved < cells && grid.isFree(x + dx, y + dy)) {
+            x += dx;
+            y += dy;
+            moved++;
+        }
+        for (int blocked = moved; blocked < cells; blocked++) {
+            System.out.println("Obstacle detected or out of bounds. Can't move.");
+        }
+    }
+
+    public void reportStatus() {
+        System.out.println("Rover is at " + getPosition() + " facing " + direction + ".");
+    }
+
+    public Position getPosition() {
+        return new Position(x, y);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+}
+
+// Command interface for encapsulating commands
+interface Command {
+    void execute();
+
+    // A run of the same command, folded into one call
+    default void execute(int times) {
+        for (int i = 0; i < times; i++) {
+            execute();
+        }
+    }
+}
+
+// Move Command
+class MoveCommand implements Command {
+    private Rover rover;
+
+    public MoveCommand(Rover rover) {
+        this.rover = rover;
+    }
+
+    @Override
+    public void execute() {
+        rover.moveForward();
+    }
+
+    @Override
+    public void execute(int times) {
+        rover.moveForward(times);
+    }
+}
+
+// Turn Left Command
+class TurnLeftCommand implements Command {
+    private Rover rover;
+
+    public TurnLeftCommand(Rover rover) {
+        this.rover = rover;
+    }
+
+    @Override
+    public void execute() {
+        rover.turnLeft();
+    }
+
+    @Override
+    public void execute(int times) {
+        rover.turn(-(times & 3));
+    }
+}
+
+// Turn Right Command
+class TurnRightCommand implements Command {
+    private Rover rover;
+
+    public TurnRightCommand(Rover rover) {
+        this.rover = rover;
+    }
+
+    @Override
+    public void execute() {
+        rover.turnRight();
+    }
+
+    @Override
+    public void execute(int times) {
+        rover.turn(times & 3);
+    }
+}
+
+// MarsRoverController to process commands.
+// Commands are looked up in a table indexed by the command character, and a run of the same
+// command, ignoring unknown characters in between, is carried out as one folded call, so
+// interpreting allocates nothing however long the input is.
+class MarsRoverController {
+    private final Command[] dispatch = new Command[128];
+
+    public MarsRoverController(Rover rover) {
+        dispatch['M'] = new MoveCommand(rover);
+        dispatch['L'] = new TurnLeftCommand(rover);
+        dispatch['R'] = new TurnRightCommand(rover);
+    }
+
+    public void processCommands(CharSequence commands) {
+        int length = commands.length();
+        int i = 0;
+        while (i < length) {
+            Command command = lookup(commands.charAt(i));
+            if (command == null) {
+                i++;
+                continue;
+            }
+            char current = commands.charAt(i);
+            int times = 1;
+            for (i++; i < length; i++) {
+                char next = commands.charAt(i);
+                if (next == current) {
+                    times++;
+                } else if (lookup(next) != null) {
+                    break;
+                }
+            }
+            command.execute(times);
+        }
+    }
+
+    // Fold the commands once, for running them many times; unknown characters are dropped
+    public static CompiledCommands compile(CharSequence commands) {
+        CompiledCommands compiled = new CompiledCommands();
+        for (int i = 0, length = commands.length(); i < length; i++) {
+            char c = commands.charAt(i);
+            if (c == 'M' || c == 'L' || c == 'R') {
+                compiled.append(c);
+            }
+        }
+        return compiled;
+    }
+
+    public void execute(CompiledCommands compiled) {
+        for (int i = 0; i < compiled.size; i++) {
+            dispatch[compiled.commands[i]].execute(compiled.counts[i]);
+        }
+    }
+
+    private Command lookup(char c) {
+        return c < dispatch.length ? dispatch[c] : null;
+    }
+}
+
+// Command characters with the length of each run, see MarsRoverController.compile
+class CompiledCommands {
+    char[] commands = new char[16];
+    int[] counts = new int[16];
+    int size;
+
+    void append(char command) {
+        if (size > 0 && commands[size - 1] == command) {
+            counts[size - 1]++;
+            return;
+        }
+        if (size == commands.length) {
+            commands = Arrays.copyOf(commands, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        commands[size] = command;
+        counts[size] = 1;
+        size++;
+    }
+
+    // Folded runs, not characters
+    public int size() {
+        return size;
+    }
+}
+
+// Open-addressing map from a packed (x, y) cell to a rover index; see RoverFleet
+class CellMap {
+    static final int MISSING = -1;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    CellMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    static long cell(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    int get(long key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return MISSING;
+            }
+        }
+    }
+
+    void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int slot = slot(key);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    void remove(long key) {
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        size--;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = EMPTY;
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
+
+// Many rovers on one Grid, stepped in lock-step ticks: every rover with commands left carries out
+// its next one each tick. Rover state lives in parallel arrays indexed by rover number. The grid
+// is cut into vertical strips and each phase of a tick works strip by strip on a fork-join pool,
+// so the outcome never depends on thread timing:
+//   1. each rover turns, or proposes the cell ahead if it is inside the grid and clear;
+//   2. rovers proposing the same cell are grouped by the strip of that cell, and the lowest
+//      numbered one wins it;
+//   3. a winner is held back if its cell is kept by a rover that does not move, or if it and the
+//      occupant would swap places; being held back can in turn hold back the rover behind;
+//   4. the remaining moves are made.
+class RoverFleet {
+    private static final byte STAY = 0;
+    private static final byte MOVE = 1;
+    // Below this many rovers a tick runs on the calling thread
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private final Grid grid;
+    private final ForkJoinPool pool;
+    private final int strips;
+    private int count;
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private byte[] directions = new byte[16];
+    private String[] programs = new String[16];
+    private int[] counters = new int[16];
+    private final CellMap occupancy = new CellMap(16);
+
+    // Per-tick scratch, indexed by rover
+    private int[] targetXs = new int[16];
+    private int[] targetYs = new int[16];
+    private byte[] moves = new byte[16];
+    // Rovers grouped by strip, and where each strip starts
+    private int[] order = new int[16];
+    private final int[] stripStarts;
+    private final int[] stripNext;
+    private final CellMap[] claims;
+    // Rovers still to be held back in phase 3; grows with the fleet, never shrinks
+    private int[] pending = new int[16];
+    // Bound once, so a tick allocates nothing on the calling thread
+    private final IntUnaryOperator propose = this::proposeStrip;
+    private final IntUnaryOperator claim = this::claimStrip;
+
+    private long ticks;
+    private long movesMade;
+    private long obstacleStops;
+    private long collisionStops;
+
+    public RoverFleet(Grid grid) {
+        this(grid, ForkJoinPool.commonPool());
+    }
+
+    public RoverFleet(Grid grid, ForkJoinPool pool) {
+        this.grid = grid;
+        this.pool = pool;
+        this.strips = Math.max(1, Math.min(grid.getWidth(), pool.getParallelism() * 4));
+        this.stripStarts = new int[strips + 1];
+        this.stripNext = new int[strips];
+        this.claims = new CellMap[strips];
+        for (int i = 0; i < strips; i++) {
+            claims[i] = new CellMap(16);
+        }
+    }
+
+    // Returns the new rover's number; the start cell must be free of obstacles and rovers
+    public int addRover(int x, int y, Direction facing, String commands) {
+        if (!grid.isFree(x, y)) {
+            throw new IllegalArgumentException("Start cell is blocked or out of bounds: (" + x + ", " + y + ")");
+        }
+        long cell = CellMap.cell(x, y);
+        if (occupancy.get(cell) != CellMap.MISSING) {
+            throw new IllegalArgumentException("Start cell already has rover " + occupancy.get(cell));
+        }
+        if (count == xs.length) {
+            int capacity = count * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            directions = Arrays.copyOf(directions, capacity);
+            programs = Arrays.copyOf(programs, capacity);
+            counters = Arrays.copyOf(counters, capacity);
+            targetXs = Arrays.copyOf(targetXs, capacity);
+            targetYs = Arrays.copyOf(targetYs, capacity);
+            moves = Arrays.copyOf(moves, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        int rover = count++;
+        xs[rover] = x;
+        ys[rover] = y;
+        directions[rover] = (byte) facing.ordinal();
+        programs[rover] = commands;
+        counters[rover] = 0;
+        occupancy.put(cell, rover);
+        return rover;
+    }
+
+    // Replace what is left of the rover's commands
+    public void setCommands(int rover, String commands) {
+        Objects.checkIndex(rover, count);
+        programs[rover] = commands;
+        counters[rover] = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Position getPosition(int rover) {
+        Objects.checkIndex(rover, count);
+        return new Position(xs[rover], ys[rover]);
+    }
+
+    public Direction getDirection(int rover) {
+        Objects.checkIndex(rover, count);
+        return Direction.values()[directions[rover]];
+    }
+
+    public boolean hasCommandsLeft(int rover) {
+        Objects.checkIndex(rover, count);
+        return counters[rover] < programs[rover].length();
+    }
+
+    // Run one tick and return how many rovers carried out a command
+    public int tick() {
+        groupByStrip(false);
+        int active = forEachStrip(propose);
+        groupByStrip(true);
+        forEachStrip(claim);
+        holdBackBlocked();
+        for (int rover = 0; rover < count; rover++) {
+            if (moves[rover] == MOVE) {
+                occupancy.remove(CellMap.cell(xs[rover], ys[rover]));
+            }
+        }
+        for (int rover = 0; rover < count; rover++) {
+            if (moves[rover] == MOVE) {
+                xs[rover] = targetXs[rover];
+                ys[rover] = targetYs[rover];
+                occupancy.put(CellMap.cell(xs[rover], ys[rover]), rover);
+                movesMade++;
+            }
+        }
+        if (active > 0) {
+            ticks++;
+        }
+        return active;
+    }
+
+    // Tick until every rover is out of commands or maxTicks have run
+    public FleetReport run(long maxTicks) {
+        long startTicks = ticks;
+        long startMoves = movesMade;
+        long startObstacles = obstacleStops;
+        long startCollisions = collisionStops;
+        long start = System.nanoTime();
+        for (long i = 0; i < maxTicks && tick() > 0; i++) {
+            // keep ticking
+        }
+        return new FleetReport(count, ticks - startTicks, System.nanoTime() - start, movesMade - startMoves,
+                obstacleStops - startObstacles, collisionStops - startCollisions);
+    }
+
+    public long getObstacleStops() {
+        return obstacleStops;
+    }
+
+    public long getCollisionStops() {
+        return collisionStops;
+    }
+
+    // Counting sort of rover numbers into order[] by the strip of their current or target column;
+    // rovers stay in number order within a strip
+    private void groupByStrip(boolean byTarget) {
+        Arrays.fill(stripStarts, 0);
+        int[] columns = byTarget ? targetXs : xs;
+        for (int rover = 0; rover < count; rover++) {
+            if (!byTarget || moves[rover] == MOVE) {
+                stripStarts[stripOf(columns[rover]) + 1]++;
+            }
+        }
+        for (int strip = 0; strip < strips; strip++) {
+            stripStarts[strip + 1] += stripStarts[strip];
+        }
+        System.arraycopy(stripStarts, 0, stripNext, 0, strips);
+        for (int rover = 0; rover < count; rover++) {
+            if (!byTarget || moves[rover] == MOVE) {
+                order[stripNext[stripOf(columns[rover])]++] = rover;
+            }
+        }
+    }
+
+    private int stripOf(int x) {
+        return (int) ((long) x * strips / grid.getWidth());
+    }
+
+    // Phase 1 for one strip; returns how many rovers had a command
+    private int proposeStrip(int strip) {
+        int active = 0;
+        int obstacles = 0;
+        for (int i = stripStarts[strip]; i < stripStarts[strip + 1]; i++) {
+            int rover = order[i];
+            moves[rover] = STAY;
+            String program = programs[rover];
+            if (counters[rover] >= program.length()) {
+                continue;
+            }
+            active++;
+            switch (program.charAt(counters[rover]++)) {
+                case 'L' -> directions[rover] = (byte) ((directions[rover] + 3) & 3);
+                case 'R' -> directions[rover] = (byte) ((directions[rover] + 1) & 3);
+                case 'M' -> {
+                    int x = xs[rover];
+                    int y = ys[rover];
+                    switch (directions[rover]) {
+                        case 0 -> y++;
+                        case 1 -> x++;
+                        case 2 -> y--;
+                        default -> x--;
+                    }
+                    if (grid.isFree(x, y)) {
+                        targetXs[rover] = x;
+                        targetYs[rover] = y;
+                        moves[rover] = MOVE;
+                    } else {
+                        obstacles++;
+                    }
+                }
+                default -> {
+                    // Unknown commands are skipped, as by MarsRoverController
+                }
+            }
+        }
+        synchronized (this) {
+            obstacleStops += obstacles;
+        }
+        return active;
+    }
+
+    // Phase 2 for one strip: every claimant of a cell lies in the cell's strip
+    private int claimStrip(int strip) {
+        CellMap claimed = claims[strip];
+        claimed.clear();
+        int losers = 0;
+        for (int i = stripStarts[strip]; i < stripStarts[strip + 1]; i++) {
+            int rover = order[i];
+            long cell = CellMap.cell(targetXs[rover], targetYs[rover]);
+            int winner = claimed.get(cell);
+            if (winner == CellMap.MISSING) {
+                claimed.put(cell, rover);
+            } else {
+                // order[] is ascending within a strip, so the earlier claimant wins
+                moves[rover] = STAY;
+                losers++;
+            }
+        }
+        synchronized (this) {
+            collisionStops += losers;
+        }
+        return 0;
+    }
+
+    // Phase 3, on the calling thread since holding one rover back can cascade across strips
+    private void holdBackBlocked() {
+        int pendingCount = 0;
+        for (int rover = 0; rover < count; rover++) {
+            if (moves[rover] == MOVE && isBlocked(rover)) {
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = rover;
+            }
+        }
+        while (pendingCount > 0) {
+            int rover = pending[--pendingCount];
+            if (moves[rover] != MOVE) {
+                continue;
+            }
+            moves[rover] = STAY;
+            collisionStops++;
+            // Whoever won this rover's cell now finds it kept
+            int x = xs[rover];
+            int behind = claims[stripOf(x)].get(CellMap.cell(x, ys[rover]));
+            if (behind != CellMap.MISSING && moves[behind] == MOVE) {
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = behind;
+            }
+        }
+    }
+
+    private boolean isBlocked(int rover) {
+        int occupant = occupancy.get(CellMap.cell(targetXs[rover], targetYs[rover]));
+        if (occupant == CellMap.MISSING) {
+            return false;
+        }
+        if (moves[occupant] != MOVE) {
+            return true;
+        }
+        // Head-on: the two would pass through each other
+        return targetXs[occupant] == xs[rover] && targetYs[occupant] == ys[rover];
+    }
+
+    // Run the phase for every strip, in parallel when the fleet is large, and sum the results
+    private int forEachStrip(IntUnaryOperator phase) {
+        if (count < PARALLEL_THRESHOLD || strips == 1) {
+            int total = 0;
+            for (int strip = 0; strip < strips; strip++) {
+                total += phase.applyAsInt(strip);
+            }
+            return total;
+        }
+        return pool.invoke(new StripTask(phase, 0, strips));
+    }
+
+    private static class StripTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final IntUnaryOperator phase;
+        private final int from;
+        private final int to;
+
+        StripTask(IntUnaryOperator phase, int from, int to) {
+            this.phase = phase;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from == 1) {
+                return phase.applyAsInt(from);
+            }
+            int middle = (from + to) >>> 1;
+            StripTask left = new StripTask(phase, from, middle);
+            left.fork();
+            int right = new StripTask(phase, middle, to).compute();
+            return left.join() + right;
+        }
+    }
+}
+
+class FleetReport {
+    private final int rovers;
+    private final long ticks;
+    private final long elapsedNanos;
+    private final long moves;
+    private final long obstacleStops;
+    private final long collisionStops;
+
+    public FleetReport(int rovers, long ticks, long elapsedNanos, long moves, long obstacleStops,
+                       long collisionStops) {
+        this.rovers = rovers;
+        this.ticks = ticks;
+        this.elapsedNanos = elapsedNanos;
+        this.moves = moves;
+        this.obstacleStops = obstacleStops;
+        this.collisionStops = collisionStops;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getTicksPerSecond() {
+        return elapsedNanos == 0 ? 0 : ticks * 1e9 / elapsedNanos;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    public long getObstacleStops() {
+        return obstacleStops;
+    }
+
+    public long getCollisionStops() {
+        return collisionStops;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rovers, %d ticks in %.1f ms (%.0f ticks/s), %d moves, %d obstacle stops, "
+                + "%d collision stops", rovers, ticks, elapsedNanos / 1e6, getTicksPerSecond(), moves,
+                obstacleStops, collisionStops);
+    }
+}
+
+// Plans the shortest command string, counting M, L and R alike, that takes a rover from a start
+// cell and heading to a target cell. A* runs over (cell, heading) states. A first plan to a
+// target estimates the cost to go as the Manhattan distance plus the fewest turns that still
+// face every direction left to travel, which never overestimates. A target planned to again
+// gets a distance field instead: a breadth-first search backwards from the target over the same
+// states, exact about turns and detours, so later plans expand little more than the path. Fields
+// are cached per target within a byte budget and dropped when the grid changes. Forward moves
+// jump along a straight run to the next cell where turning could pay off (a side cell is open,
+// the way ahead is blocked, or the target is reached) in the spirit of jump point search, since
+// turning with walls on both sides is never shorter than turning earlier.
+class PathPlanner {
+    // A search gives up once it has reached this many cells
+    static final int MAX_SEARCH_CELLS = 1 << 23;
+    // A target gets a distance field from its this-many-th plan on
+    static final int FIELD_AFTER_PLANS = 2;
+    static final long DEFAULT_FIELD_CACHE_BYTES = 64L << 20;
+    // Targets whose plans are being counted, most recent kept
+    private static final int COUNTED_TARGETS = 64;
+    // Search costs are kept per 64x64 block of cells, allocated when a search first reaches it
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    private static final int BLOCK_STATES = 4 << (2 * BLOCK_SHIFT);
+    private static final int UNSEEN = Integer.MAX_VALUE;
+    private static final int UNREACHABLE = -1;
+    private static final int[] STEP_X = {0, 1, 0, -1};
+    private static final int[] STEP_Y = {1, 0, -1, 0};
+
+    private final Grid grid;
+    private final int blockColumns;
+    private final long fieldCacheBytes;
+    // Keyed by target cell, for the grid version below; least recently used first
+    private final LinkedHashMap<Integer, int[]> fields = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Integer> planCounts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+            return size() > COUNTED_TARGETS;
+        }
+    };
+    private long fieldsVersion = -1;
+    private long cachedFieldBytes;
+    private int[] fieldQueue = new int[0];
+
+    // Search scratch reused across plans. A state is its block number, then its cell within the
+    // block, then its heading; a block's costs count only if its stamp is current.
+    private final int[][] blockCosts;
+    private final int[] blockStamps;
+    private int stamp;
+    private int blocksReached;
+    private long[] entryStates = new long[64];
+    private int[] entryCosts = new int[64];
+    private int[] entryNext = new int[64];
+    private int entryCount;
+    private int openEntries;
+    private int[] bucketHeads = new int[64];
+    private int firstEstimate;
+    private int currentBucket;
+    private int lastExpansions;
+    // The search in progress
+    private int[] field;
+    private int targetX;
+    private int targetY;
+
+    public PathPlanner(Grid grid) {
+        this(grid, DEFAULT_FIELD_CACHE_BYTES);
+    }
+
+    // A field takes 16 bytes per grid cell; a budget smaller than that disables them
+    public PathPlanner(Grid grid, long fieldCacheBytes) {
+        if (fieldCacheBytes < 0) {
+            throw new IllegalArgumentException("Field cache budget must not be negative: " + fieldCacheBytes);
+        }
+        this.grid = grid;
+        this.fieldCacheBytes = fieldCacheBytes;
+        this.blockColumns = (grid.getWidth() + BLOCK_MASK) >>> BLOCK_SHIFT;
+        long blocks = (long) blockColumns * ((grid.getHeight() + BLOCK_MASK) >>> BLOCK_SHIFT);
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large to plan on: " + grid.getWidth() + "x" + grid.getHeight());
+        }
+        this.blockCosts = new int[(int) blocks][];
+        this.blockStamps = new int[(int) blocks];
+    }
+
+    // Commands such as "MMRMM", "" if already there, or null if the target cannot be reached.
+    // Throws IllegalStateException if the search reaches MAX_SEARCH_CELLS cells before settling
+    // either way.
+    public String plan(Position start, Direction facing, Position target) {
+        int sx = start.getX();
+        int sy = start.getY();
+        int tx = target.getX();
+        int ty = target.getY();
+        if (!grid.isFree(sx, sy) || !grid.isFree(tx, ty)) {
+            throw new IllegalArgumentException("Start and target must be free cells: " + start + ", " + target);
+        }
+        targetX = tx;
+        targetY = ty;
+        field = distanceField(tx, ty);
+        if (field != null && field[fieldIndex(sx, sy, facing.ordinal())] == UNREACHABLE) {
+            return null;
+        }
+        return search(state(sx, sy, facing.ordinal()));
+    }
+
+    // States taken off the open list by the last plan, for tuning
+    public int getLastExpansions() {
+        return lastExpansions;
+    }
+
+    // Bytes held by cached distance fields
+    public long getCachedFieldBytes() {
+        return cachedFieldBytes;
+    }
+
+    private String search(long start) {
+        if (++stamp == 0) {
+            Arrays.fill(blockStamps, 0);
+            stamp = 1;
+        }
+        blocksReached = 0;
+        entryCount = 0;
+        openEntries = 0;
+        Arrays.fill(bucketHeads, -1);
+        firstEstimate = -1;
+        currentBucket = 0;
+        lastExpansions = 0;
+        relax(start, 0);
+        while (openEntries > 0) {
+            int entry = pop();
+            long state = entryStates[entry];
+            int cost = entryCosts[entry];
+            // Superseded by a cheaper entry for the same state
+            if (cost != cost(state)) {
+                continue;
+            }
+            lastExpansions++;
+            int heading = (int) state & 3;
+            int x = x(state);
+            int y = y(state);
+            if (x == targetX && y == targetY) {
+                return commands(state, cost);
+            }
+            relax(state & ~3L | ((heading + 3) & 3), cost + 1);
+            relax(state & ~3L | ((heading + 1) & 3), cost + 1);
+            // Jump forward to the next cell worth stopping at
+            int steps = 0;
+            while (true) {
+                int nx = x + STEP_X[heading];
+                int ny = y + STEP_Y[heading];
+                if (!grid.isFree(nx, ny)) {
+                    break;
+                }
+                x = nx;
+                y = ny;
+                steps++;
+                if ((x == targetX && y == targetY) || sideOpen(x, y, heading)) {
+                    break;
+                }
+            }
+            if (steps > 0) {
+                relax(state(x, y, heading), cost + steps);
+            }
+        }
+        return null;
+    }
+
+    private boolean sideOpen(int x, int y, int heading) {
+        int left = (heading + 3) & 3;
+        int right = (heading + 1) & 3;
+        return grid.isFree(x + STEP_X[left], y + STEP_Y[left])
+                || grid.isFree(x + STEP_X[right], y + STEP_Y[right]);
+    }
+
+    private void relax(long state, int cost) {
+        int x = x(state);
+        int y = y(state);
+        int heading = (int) state & 3;
+        int estimate = field != null ? field[fieldIndex(x, y, heading)] : estimate(x, y, heading);
+        if (estimate == UNREACHABLE || cost(state) <= cost) {
+            return;
+        }
+        int[] costs = reach((int) (state >>> 14));
+        costs[(int) state & (BLOCK_STATES - 1)] = cost;
+        if (firstEstimate < 0) {
+            firstEstimate = estimate;
+        }
+        push(state, cost, cost + estimate);
+    }
+
+    // Moves still needed, plus one turn for each direction still to travel in that the rover is
+    // not facing, or two if the only one is behind it. Neither part drops by more than a command
+    // costs, so states come off the open list with their final cost.
+    private int estimate(int x, int y, int heading) {
+        int dx = targetX - x;
+        int dy = targetY - y;
+        int across = dx > 0 ? 1 : dx < 0 ? 3 : -1;
+        int along = dy > 0 ? 0 : dy < 0 ? 2 : -1;
+        int turns;
+        if (across < 0 && along < 0) {
+            turns = 0;
+        } else if (across < 0 || along < 0) {
+            int needed = across < 0 ? along : across;
+            turns = heading == needed ? 0 : heading == (needed ^ 2) ? 2 : 1;
+        } else {
+            turns = heading == across || heading == along ? 1 : 2;
+        }
+        return Math.abs(dx) + Math.abs(dy) + turns;
+    }
+
+    // Walk back from the goal through states whose cost is exactly one command sequence less;
+    // every recorded cost was set from a state that had come off the open list, so one always exists
+    private String commands(long goal, int goalCost) {
+        StringBuilder reversed = new StringBuilder();
+        long state = goal;
+        int cost = goalCost;
+        while (cost > 0) {
+            int x = x(state);
+            int y = y(state);
+            int heading = (int) state & 3;
+            long fromRight = state(x, y, (heading + 1) & 3);
+            long fromLeft = state(x, y, (heading + 3) & 3);
+            if (cost(fromRight) == cost - 1) {
+                reversed.append('L');
+                state = fromRight;
+                cost--;
+                continue;
+            }
+            if (cost(fromLeft) == cost - 1) {
+                reversed.append('R');
+                state = fromLeft;
+                cost--;
+                continue;
+            }
+            int steps = 1;
+            while (true) {
+                int bx = x - steps * STEP_X[heading];
+                int by = y - steps * STEP_Y[heading];
+                if (!grid.isFree(bx, by)) {
+                    throw new IllegalStateException("No predecessor for (" + x + ", " + y + ") at cost " + cost);
+                }
+                long behind = state(bx, by, heading);
+                if (cost(behind) == cost - steps) {
+                    for (int i = 0; i < steps; i++) {
+                        reversed.append('M');
+                    }
+                    state = behind;
+                    cost -= steps;
+                    break;
+                }
+                steps++;
+            }
+        }
+        return reversed.reverse().toString();
+    }
+
+    private long state(int x, int y, int heading) {
+        long block = (long) (y >>> BLOCK_SHIFT) * blockColumns + (x >>> BLOCK_SHIFT);
+        return block << 14 | ((y & BLOCK_MASK) << BLOCK_SHIFT | (x & BLOCK_MASK)) << 2 | heading;
+    }
+
+    private int x(long state) {
+        int block = (int) (state >>> 14);
+        return (block % blockColumns) << BLOCK_SHIFT | ((int) state >>> 2 & BLOCK_MASK);
+    }
+
+    private int y(long state) {
+        int block = (int) (state >>> 14);
+        return (block / blockColumns) << BLOCK_SHIFT | ((int) state >>> (2 + BLOCK_SHIFT) & BLOCK_MASK);
+    }
+
+    private int cost(long state) {
+        int block = (int) (state >>> 14);
+        return blockStamps[block] == stamp ? blockCosts[block][(int) state & (BLOCK_STATES - 1)] : UNSEEN;
+    }
+
+    // The block's costs, cleared the first time this search reaches it
+    private int[] reach(int block) {
+        int[] costs = blockCosts[block];
+        if (blockStamps[block] != stamp) {
+            if (++blocksReached > MAX_SEARCH_CELLS >>> (2 * BLOCK_SHIFT)) {
+                throw new IllegalStateException("Gave up planning to (" + targetX + ", " + targetY + ") after "
+                        + MAX_SEARCH_CELLS + " cells; the target may still be reachable");
+            }
+            if (costs == null) {
+                costs = new int[BLOCK_STATES];
+                blockCosts[block] = costs;
+            }
+            Arrays.fill(costs, UNSEEN);
+            blockStamps[block] = stamp;
+        }
+        return costs;
+    }
+
+    private int fieldIndex(int x, int y, int heading) {
+        return (y * grid.getWidth() + x) << 2 | heading;
+    }
+
+    // The cached field for the target, a new one if the target has been planned to often enough
+    // and one fits the budget, or null to search with the plain estimate
+    private int[] distanceField(int tx, int ty) {
+        if (grid.getVersion() != fieldsVersion) {
+            fields.clear();
+            planCounts.clear();
+            cachedFieldBytes = 0;
+            fieldsVersion = grid.getVersion();
+        }
+        long states = 4L * grid.getWidth() * grid.getHeight();
+        long bytes = 4 * states;
+        if (bytes > fieldCacheBytes) {
+            return null;
+        }
+        int targetCell = ty * grid.getWidth() + tx;
+        int[] cached = fields.get(targetCell);
+        if (cached != null) {
+            return cached;
+        }
+        if (planCounts.merge(targetCell, 1, Integer::sum) < FIELD_AFTER_PLANS) {
+            return null;
+        }
+        planCounts.remove(targetCell);
+        // Fields are all the same size, so an evicted one is filled in again rather than reallocated
+        int[] field = null;
+        while (cachedFieldBytes + bytes > fieldCacheBytes) {
+            Iterator<int[]> eldest = fields.values().iterator();
+            field = eldest.next();
+            eldest.remove();
+            cachedFieldBytes -= bytes;
+        }
+        if (field == null) {
+            field = new int[(int) states];
+        }
+        fill(field, targetCell);
+        fields.put(targetCell, field);
+        cachedFieldBytes += bytes;
+        return field;
+    }
+
+    // Commands still needed from each (cell, heading) state, found by searching backwards from the
+    // target: a state is one more than the state it turns or moves into
+    private void fill(int[] field, int targetCell) {
+        int width = grid.getWidth();
+        if (fieldQueue.length < field.length) {
+            fieldQueue = new int[field.length];
+        }
+        int[] queue = fieldQueue;
+        Arrays.fill(field, UNREACHABLE);
+        int head = 0;
+        int tail = 0;
+        for (int heading = 0; heading < 4; heading++) {
+            field[targetCell << 2 | heading] = 0;
+            queue[tail++] = targetCell << 2 | heading;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int cell = state >>> 2;
+            int heading = state & 3;
+            int next = field[state] + 1;
+            // Turning into this heading from either side
+            int fromLeft = cell << 2 | ((heading + 1) & 3);
+            int fromRight = cell << 2 | ((heading + 3) & 3);
+            if (field[fromLeft] == UNREACHABLE) {
+                field[fromLeft] = next;
+                queue[tail++] = fromLeft;
+            }
+            if (field[fromRight] == UNREACHABLE) {
+                field[fromRight] = next;
+                queue[tail++] = fromRight;
+            }
+            // Moving forward into this cell from the one behind it
+            int bx = cell % width - STEP_X[heading];
+            int by = cell / width - STEP_Y[heading];
+            if (grid.isFree(bx, by)) {
+                int behind = (by * width + bx) << 2 | heading;
+                if (field[behind] == UNREACHABLE) {
+                    field[behind] = next;
+                    queue[tail++] = behind;
+                }
+            }
+        }
+    }
+
+    // Open list as buckets by estimate. The estimate never drops along a path, so buckets are
+    // taken in order; within one, the newest entry comes first, which favours deeper states.
+    private void push(long state, int cost, int estimate) {
+        if (entryCount == entryStates.length) {
+            entryStates = Arrays.copyOf(entryStates, entryCount * 2);
+            entryCosts = Arrays.copyOf(entryCosts, entryCount * 2);
+            entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+        }
+        int bucket = estimate - firstEstimate;
+        if (bucket >= bucketHeads.length) {
+            int old = bucketHeads.length;
+            bucketHeads = Arrays.copyOf(bucketHeads, Math.max(bucket + 1, old * 2));
+            Arrays.fill(bucketHeads, old, bucketHeads.length, -1);
+        }
+        entryStates[entryCount] = state;
+        entryCosts[entryCount] = cost;
+        entryNext[entryCount] = bucketHeads[bucket];
+        bucketHeads[bucket] = entryCount++;
+        openEntries++;
+    }
+
+    // Takes the next entry off the open list and returns its index into the entry arrays
+    private int pop() {
+        while (bucketHeads[currentBucket] == -1) {
+            currentBucket++;
+        }
+        int entry = bucketHeads[currentBucket];
+        bucketHeads[currentBucket] = entryNext[entry];
+        openEntries--;
+        return entry;
+    }
+}
+
+// Main class for simulation
+public class MarsRoverSimulation {
+
+    public static void main(String[] args) {
+        // Define obstacles
+        List<Position> obstacles = List.of(new Position(2, 2), new Position(3, 5));
+
+        // Create a 10x10 grid
+        Grid grid = new Grid(10, 10, obstacles);
+
+        // Initialize Rover at position (0, 0) facing North
+        Rover rover = new Rover(new Position(0, 0), Direction.NORTH, grid);
+
+        // Create Mars Rover Controller with commands
+        MarsRoverController controller = new MarsRoverController(rover);
+
+        // Simulate commands
+        String commands = "MMRMMLM";
+        controller.processCommands(commands);
+
+        // Report final status
+        rover.reportStatus();
+    }
+}
@@ -1,270 +1,5038 @@
-import java.util.*;
-
-// Device interface for common behavior
-interface SmartDevice {
-    void turnOn();
-    void turnOff();
-    String getStatus();
-    int getId();
-}
-
-// Concrete Light class
-class Light implements SmartDevice {
-    private int id;
-    private boolean isOn;
-
-    public Light(int id) {
-        this.id = id;
-        this.isOn = false;
-    }
-
-    @Override
-    public void turnOn() {
-        isOn = true;
-    }
-
-    @Override
-    public void turnOff() {
-        isOn = false;
-    }
-
-    @Override
-    public String getStatus() {
-        return "Light " + id + " is " + (isOn ? "On" : "Off");
-    }
-
-    @Override
-    public int getId() {
-        return id;
-    }
-}
-
-// Concrete Thermostat class
-class Thermostat implements SmartDevice {
-    private int id;
-    private int temperature;
-
-    public Thermostat(int id, int initialTemperature) {
-        this.id = id;
-        this.temperature = initialTemperature;
-    }
-
-    public void setTemperature(int temperature) {
-        this.temperature = temperature;
-    }
-
-    @Override
-    public void turnOn() {
-        // Simulate thermostat behavior
-    }
-
-    @Override
-    public void turnOff() {
-        // Simulate thermostat behavior
-    }
-
-    @Override
-    public String getStatus() {
-        return "Thermostat " + id + " is set to " + temperature + " degrees";
-    }
-
-    @Override
-    public int getId() {
-        return id;
-    }
-
-    public int getTemperature() {
-        return temperature;
-    }
-}
-
-// Concrete DoorLock class
-class DoorLock implements SmartDevice {
-    private int id;
-    private boolean isLocked;
-
-    public DoorLock(int id) {
-        this.id = id;
-        this.isLocked = true;
-    }
-
-    @Override
-    public void turnOn() {
-        isLocked = false;
-    }
-
-    @Override
-    public void turnOff() {
-        isLocked = true;
-    }
-
-    @Override
-    public String getStatus() {
-        return "Door " + id + " is " + (isLocked ? "Locked" : "Unlocked");
-    }
-
-    @Override
-    public int getId() {
-        return id;
-    }
-}
-
-// Factory for creating smart devices
-class SmartDeviceFactory {
-    public static SmartDevice createDevice(String type, int id) {
-        return switch (type.toLowerCase()) {
-            case "light" -> new Light(id);
-            case "thermostat" -> new Thermostat(id, 70);
-            case "door" -> new DoorLock(id);
-            default -> throw new IllegalArgumentException("Unknown device type");
-        };
-    }
-}
-
-// SmartHomeHub acts as the observer subject and proxy controller
-class SmartHomeHub {
-    private Map<Integer, SmartDevice> devices = new HashMap<>();
-    private List<ScheduledTask> scheduledTasks = new ArrayList<>();
-    private List<Trigger> triggers = new ArrayList<>();
-
-    public void addDevice(SmartDevice device) {
-        devices.put(device.getId(), device);
-        System.out.println(device.getClass().getSimpleName() + " " + device.getId() + " added to the system.");
-    }
-
-    public void removeDevice(int id) {
-        devices.remove(id);
-        System.out.println("Device " + id + " removed from the system.");
-    }
-
-    public void turnOn(int id) {
-        SmartDevice device = devices.get(id);
-        if (device != null) {
-            device.turnOn();
-            System.out.println(device.getClass().getSimpleName() + " " + id + " turned On.");
-        }
-    }
-
-    public void turnOff(int id) {
-        SmartDevice device = devices.get(id);
-        if (device != null) {
-            device.turnOff();
-            System.out.println(device.getClass().getSimpleName() + " " + id + " turned Off.");
-        }
-    }
-
-    public void scheduleTask(int deviceId, String time, String command) {
-        scheduledTasks.add(new ScheduledTask(deviceId, time, command));
-        System.out.println("Scheduled task added for Device " + deviceId + " at " + time + ": " + command);
-    }
-
-    public void addTrigger(String condition, String action) {
-        triggers.add(new Trigger(condition, action));
-        System.out.println("Added trigger: When " + condition + " then " + action);
-    }
-
-    public void checkTriggers() {
-        for (Trigger trigger : triggers) {
-            if (trigger.evaluate(devices)) {
-                executeAction(trigger.getAction());
-            }
-        }
-    }
-
-    private void executeAction(String action) {
-        // Simple action parser
-        if (action.startsWith("turnOn")) {
-            int id = Integer.parseInt(action.replaceAll("[^0-9]", ""));
-            turnOn(id);
-        } else if (action.startsWith("turnOff")) {
-            int id = Integer.parseInt(action.replaceAll("[^0-9]", ""));
-            turnOff(id);
-        }
-    }
-
-    public void statusReport() {
-        for (SmartDevice device : devices.values()) {
-            System.out.println(device.getStatus());
-        }
-    }
-}
-
-// ScheduledTask to store scheduling commands
-class ScheduledTask {
-    private int deviceId;
-    private String time;
-    private String command;
-
-    public ScheduledTask(int deviceId, String time, String command) {
-        this.deviceId = deviceId;
-        this.time = time;
-        this.command = command;
-    }
-
-    @Override
-    public String toString() {
-        return "Device " + deviceId + " at " + time + ": " + command;
-    }
-}
-
-// Trigger class to manage automation
-class Trigger {
-    private String condition;
-    private String action;
-
-    public Trigger(String condition, String action) {
-        this.condition = condition;
-        this.action = action;
-    }
-
-    public boolean evaluate(Map<Integer, SmartDevice> devices) {
-        // Example: condition like "temperature > 75"
-        if (condition.contains("temperature")) {
-            int id = 2; // Assuming thermostat has id 2
-            Thermostat thermostat = (Thermostat) devices.get(id);
-            if (thermostat != null) {
-                String[] parts = condition.split(" ");
-                int temp = Integer.parseInt(parts[2]);
-                return thermostat.getTemperature() > temp;
-            }
-        }
-        return false;
-    }
-
-    public String getAction() {
-        return action;
-    }
-}
-
-// Main class for Smart Home Simulation
-public class SmartHomeSimulation {
-    public static void main(String[] args) {
-        // Create the Smart Home Hub
-        SmartHomeHub hub = new SmartHomeHub();
-
-        // Add devices using the factory
-        SmartDevice light1 = SmartDeviceFactory.createDevice("light", 1);
-        SmartDevice thermostat = SmartDeviceFactory.createDevice("thermostat", 2);
-        SmartDevice door = SmartDeviceFactory.createDevice("door", 3);
-
-        // Add devices to the hub
-        hub.addDevice(light1);
-        hub.addDevice(thermostat);
-        hub.addDevice(door);
-
-        // Turn on a device
-        hub.turnOn(1);
-
-        // Schedule a task
-        hub.scheduleTask(2, "06:00", "Turn On");
-
-        // Add automation trigger
-        hub.addTrigger("temperature > 75", "turnOff(1)");
-
-        // Simulate trigger check
-        hub.checkTriggers();
-
-        // Display status report
-        hub.statusReport();
-    }
-}
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.*;
+import java.util.regex.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Device state that trigger conditions can refer to, e.g. "temperature > 75"
+enum DeviceAttribute {
+    ON("on"),
+    TEMPERATURE("temperature"),
+    LOCKED("locked");
+
+    private final String keyword;
+
+    DeviceAttribute(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    public static DeviceAttribute fromKeyword(String keyword) {
+        for (DeviceAttribute attribute : values()) {
+            if (attribute.keyword.equals(keyword)) {
+                return attribute;
+            }
+        }
+        throw new IllegalArgumentException("Unknown device attribute: " + keyword);
+    }
+}
+
+// Device interface for common behavior
+interface SmartDevice {
+    void turnOn();
+    void turnOff();
+    String getStatus();
+    int getId();
+
+    boolean hasAttribute(DeviceAttribute attribute);
+
+    // Current value of an attribute; booleans read as 1 or 0
+    int readAttribute(DeviceAttribute attribute);
+
+    // Point this device at its state in the given registry; called by DeviceRegistry.add
+    void bind(DeviceRegistry registry);
+}
+
+// A single attribute of a device changed value
+class DeviceStateChange {
+    private final int deviceId;
+    private final DeviceAttribute attribute;
+    private final int oldValue;
+    private final int newValue;
+
+    public DeviceStateChange(int deviceId, DeviceAttribute attribute, int oldValue, int newValue) {
+        this.deviceId = deviceId;
+        this.attribute = attribute;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    public DeviceAttribute getAttribute() {
+        return attribute;
+    }
+
+    public int getOldValue() {
+        return oldValue;
+    }
+
+    public int getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public String toString() {
+        return "Device " + deviceId + " " + attribute.getKeyword() + " " + oldValue + " -> " + newValue;
+    }
+}
+
+// Observer pattern: devices publish their state changes, the hub and others subscribe
+class DeviceEventBus {
+    private final List<Consumer<DeviceStateChange>> listeners = new CopyOnWriteArrayList<>();
+
+    public void subscribe(Consumer<DeviceStateChange> listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(Consumer<DeviceStateChange> listener) {
+        listeners.remove(listener);
+    }
+
+    // Devices call this only when a value actually changes
+    public void publish(int deviceId, DeviceAttribute attribute, int oldValue, int newValue) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        DeviceStateChange change = new DeviceStateChange(deviceId, attribute, oldValue, newValue);
+        for (Consumer<DeviceStateChange> listener : listeners) {
+            listener.accept(change);
+        }
+    }
+}
+
+// Concrete Light class; keeps its own state until added to a DeviceRegistry, then is a handle onto its row
+class Light implements SmartDevice {
+    private final int id;
+    private DeviceRegistry registry;
+    private boolean isOn;
+
+    public Light(int id) {
+        this.id = id;
+    }
+
+    Light(int id, DeviceRegistry registry) {
+        this.id = id;
+        this.registry = registry;
+    }
+
+    @Override
+    public void turnOn() {
+        if (registry == null) {
+            isOn = true;
+        } else {
+            registry.turnOn(id);
+        }
+    }
+
+    @Override
+    public void turnOff() {
+        if (registry == null) {
+            isOn = false;
+        } else {
+            registry.turnOff(id);
+        }
+    }
+
+    @Override
+    public void bind(DeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public String getStatus() {
+        return registry == null ? DeviceRegistry.describe(DeviceRegistry.LIGHT, id, isOn ? 1 : 0) : registry.status(id);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public boolean hasAttribute(DeviceAttribute attribute) {
+        return attribute == DeviceAttribute.ON;
+    }
+
+    @Override
+    public int readAttribute(DeviceAttribute attribute) {
+        if (registry == null) {
+            DeviceRegistry.requireAttribute(DeviceRegistry.LIGHT, attribute);
+            return isOn ? 1 : 0;
+        }
+        return registry.readAttribute(id, attribute);
+    }
+}
+
+// Concrete Thermostat class; keeps its own state until added to a DeviceRegistry, then is a handle onto its row
+class Thermostat implements SmartDevice {
+    private final int id;
+    private DeviceRegistry registry;
+    private int temperature;
+
+    public Thermostat(int id, int initialTemperature) {
+        this.id = id;
+        this.temperature = initialTemperature;
+    }
+
+    Thermostat(int id, DeviceRegistry registry) {
+        this.id = id;
+        this.registry = registry;
+    }
+
+    public void setTemperature(int temperature) {
+        if (registry == null) {
+            this.temperature = temperature;
+        } else {
+            registry.setTemperature(id, temperature);
+        }
+    }
+
+    @Override
+    public void bind(DeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void turnOn() {
+        // Simulate thermostat behavior
+    }
+
+    @Override
+    public void turnOff() {
+        // Simulate thermostat behavior
+    }
+
+    @Override
+    public String getStatus() {
+        return registry == null ? DeviceRegistry.describe(DeviceRegistry.THERMOSTAT, id, temperature) : registry.status(id);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    public int getTemperature() {
+        return readAttribute(DeviceAttribute.TEMPERATURE);
+    }
+
+    @Override
+    public boolean hasAttribute(DeviceAttribute attribute) {
+        return attribute == DeviceAttribute.TEMPERATURE;
+    }
+
+    @Override
+    public int readAttribute(DeviceAttribute attribute) {
+        if (registry == null) {
+            DeviceRegistry.requireAttribute(DeviceRegistry.THERMOSTAT, attribute);
+            return temperature;
+        }
+        return registry.readAttribute(id, attribute);
+    }
+}
+
+// Concrete DoorLock class; keeps its own state until added to a DeviceRegistry, then is a handle onto its row
+class DoorLock implements SmartDevice {
+    private final int id;
+    private DeviceRegistry registry;
+    private boolean isLocked = true;
+
+    public DoorLock(int id) {
+        this.id = id;
+    }
+
+    DoorLock(int id, DeviceRegistry registry) {
+        this.id = id;
+        this.registry = registry;
+    }
+
+    @Override
+    public void turnOn() {
+        if (registry == null) {
+            isLocked = false;
+        } else {
+            registry.turnOn(id);
+        }
+    }
+
+    @Override
+    public void turnOff() {
+        if (registry == null) {
+            isLocked = true;
+        } else {
+            registry.turnOff(id);
+        }
+    }
+
+    @Override
+    public void bind(DeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public String getStatus() {
+        return registry == null ? DeviceRegistry.describe(DeviceRegistry.DOOR_LOCK, id, isLocked ? 1 : 0) : registry.status(id);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public boolean hasAttribute(DeviceAttribute attribute) {
+        return attribute == DeviceAttribute.LOCKED;
+    }
+
+    @Override
+    public int readAttribute(DeviceAttribute attribute) {
+        if (registry == null) {
+            DeviceRegistry.requireAttribute(DeviceRegistry.DOOR_LOCK, attribute);
+            return isLocked ? 1 : 0;
+        }
+        return registry.readAttribute(id, attribute);
+    }
+}
+
+// Open-addressing int -> int map with linear probing; values must be non-negative
+class IntIntMap {
+    static final int MISSING = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                return MISSING;
+            }
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+    }
+
+    public void put(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int slot = slot(key);
+        while (values[slot] != MISSING && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == MISSING) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    public int remove(int key) {
+        int slot = slot(key);
+        while (values[slot] != MISSING && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        int removed = values[slot];
+        if (removed == MISSING) {
+            return MISSING;
+        }
+        size--;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != MISSING; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            // Move the entry back only if the gap lies on its probe path
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = MISSING;
+        return removed;
+    }
+
+    private int slot(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
+
+// Column store for one device type: ids and state in parallel arrays, rows kept dense
+abstract class DeviceTable {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    int[] ids = new int[4];
+    // One bit per tag known to the registry
+    long[] tags = new long[4];
+    // Registry version at which each row last changed, and the newest of those per block of
+    // 64 rows, so a "changed since" scan can skip untouched blocks without reading their rows
+    long[] versions = new long[4];
+    long[] blockVersions = new long[1];
+    int size;
+
+    int addRow(int id, long version) {
+        if (size == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            blockVersions = Arrays.copyOf(blockVersions, (capacity + 63) >>> 6);
+            growState(capacity);
+        }
+        ids[size] = id;
+        tags[size] = 0;
+        touch(size, version);
+        return size++;
+    }
+
+    // Fill the hole with the last row; returns the id that moved into it, or MISSING
+    int removeRow(int row) {
+        int last = --size;
+        if (row == last) {
+            return IntIntMap.MISSING;
+        }
+        ids[row] = ids[last];
+        tags[row] = tags[last];
+        touch(row, versions[last]);
+        moveState(last, row);
+        return ids[row];
+    }
+
+    // Rows are touched by their own actors concurrently, so the block maximum is raised by CAS
+    void touch(int row, long version) {
+        LONGS.setRelease(versions, row, version);
+        int block = row >>> 6;
+        long current;
+        do {
+            current = (long) LONGS.getAcquire(blockVersions, block);
+            if (current >= version) {
+                return;
+            }
+        } while (!LONGS.compareAndSet(blockVersions, block, current, version));
+    }
+
+    abstract void growState(int capacity);
+
+    abstract void moveState(int from, int to);
+}
+
+// Single boolean per device, packed 64 to a long
+class BitColumnTable extends DeviceTable {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    long[] bits = new long[1];
+
+    boolean get(int row) {
+        return ((long) WORDS.getAcquire(bits, row >>> 6) & (1L << row)) != 0;
+    }
+
+    // Atomic, because other rows in the same word may be updated concurrently; returns the old value
+    boolean exchange(int row, boolean value) {
+        long bit = 1L << row;
+        long previous = value
+                ? (long) WORDS.getAndBitwiseOr(bits, row >>> 6, bit)
+                : (long) WORDS.getAndBitwiseAnd(bits, row >>> 6, ~bit);
+        return (previous & bit) != 0;
+    }
+
+    // For use while holding the registry's write lock
+
+    void set(int row, boolean value) {
+        if (value) {
+            bits[row >>> 6] |= 1L << row;
+        } else {
+            bits[row >>> 6] &= ~(1L << row);
+        }
+    }
+
+    // Whether any live row holds the given value, a word at a time
+    boolean contains(boolean value) {
+        int fullWords = size >>> 6;
+        for (int i = 0; i < fullWords; i++) {
+            if (value ? bits[i] != 0 : bits[i] != -1L) {
+                return true;
+            }
+        }
+        int tail = size & 63;
+        if (tail == 0) {
+            return false;
+        }
+        long live = (1L << tail) - 1;
+        long word = value ? bits[fullWords] : ~bits[fullWords];
+        return (word & live) != 0;
+    }
+
+    @Override
+    void growState(int capacity) {
+        bits = Arrays.copyOf(bits, (capacity + 63) >>> 6);
+    }
+
+    @Override
+    void moveState(int from, int to) {
+        set(to, get(from));
+        set(from, false);
+    }
+}
+
+// Single int per device
+class IntColumnTable extends DeviceTable {
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    int[] values = new int[4];
+
+    int get(int row) {
+        return (int) VALUES.getAcquire(values, row);
+    }
+
+    // Returns the old value
+    int exchange(int row, int value) {
+        return (int) VALUES.getAndSet(values, row, value);
+    }
+
+    @Override
+    void growState(int capacity) {
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    void moveState(int from, int to) {
+        values[to] = values[from];
+    }
+}
+
+// Selects devices for a group command: by type, by tags (all must be present) and by id range
+class DeviceGroup {
+    private final String type;
+    private final Set<String> tags;
+    private final int fromId;
+    private final int toId;
+
+    private DeviceGroup(String type, Set<String> tags, int fromId, int toId) {
+        if (fromId > toId) {
+            throw new IllegalArgumentException("Empty id range: " + fromId + ".." + toId);
+        }
+        this.type = type;
+        this.tags = tags;
+        this.fromId = fromId;
+        this.toId = toId;
+    }
+
+    public static DeviceGroup all() {
+        return new DeviceGroup(null, Set.of(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Type names as accepted by SmartDeviceFactory, e.g. "light"
+    public static DeviceGroup ofType(String type) {
+        return new DeviceGroup(type.toLowerCase(), Set.of(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public static DeviceGroup tagged(String tag) {
+        return new DeviceGroup(null, Set.of(tag), Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Inclusive on both ends
+    public static DeviceGroup idRange(int fromId, int toId) {
+        return new DeviceGroup(null, Set.of(), fromId, toId);
+    }
+
+    // Devices in both groups
+    public DeviceGroup and(DeviceGroup other) {
+        if (type != null && other.type != null && !type.equals(other.type)) {
+            throw new IllegalArgumentException("A group cannot have two types: " + type + ", " + other.type);
+        }
+        Set<String> combined = new HashSet<>(tags);
+        combined.addAll(other.tags);
+        return new DeviceGroup(type != null ? type : other.type, Set.copyOf(combined),
+                Math.max(fromId, other.fromId), Math.min(toId, other.toId));
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    boolean coversAllIds() {
+        return fromId == Integer.MIN_VALUE && toId == Integer.MAX_VALUE;
+    }
+
+    boolean matches(int id, long rowTags, long requiredTags) {
+        return id >= fromId && id <= toId && (rowTags & requiredTags) == requiredTags;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (type != null) {
+            parts.add("type " + type);
+        }
+        if (!tags.isEmpty()) {
+            parts.add("tags " + tags);
+        }
+        if (!coversAllIds()) {
+            parts.add("ids " + fromId + ".." + toId);
+        }
+        return parts.isEmpty() ? "all devices" : String.join(", ", parts);
+    }
+}
+
+// Summary of a group command; skipped devices matched but do not support the command
+class GroupCommandResult {
+    private final int matched;
+    private final int changed;
+    private final int skipped;
+    private final long elapsedNanos;
+
+    public GroupCommandResult(int matched, int changed, int skipped, long elapsedNanos) {
+        this.matched = matched;
+        this.changed = changed;
+        this.skipped = skipped;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getMatched() {
+        return matched;
+    }
+
+    public int getChanged() {
+        return changed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return matched + " matched, " + changed + " changed, " + skipped + " skipped in "
+                + String.format("%.2f", elapsedNanos / 1_000_000.0) + " ms";
+    }
+}
+
+enum SnapshotFormat {
+    // Fixed-size records: header, then per record a type byte, int id, int value and long version
+    BINARY,
+    // "id,type,value,version" lines after a "# since=..,upto=..,full=.." comment line
+    CSV,
+    // The human-readable statusReport lines
+    TEXT
+}
+
+// Encodes snapshot records into one reusable buffer and drains it to the channel whenever it
+// fills up, so a report of any size needs no per-device objects. Not thread-safe; use one per thread.
+class SnapshotWriter {
+    static final int BINARY_MAGIC = 0x53485331; // "SHS1"
+    static final byte REMOVED = 3;
+    static final byte END = (byte) 0xFF;
+    // Room for the largest single record in any format
+    private static final int MAX_RECORD_BYTES = 96;
+
+    private static final byte[][] CSV_TYPES = {ascii("light"), ascii("thermostat"), ascii("door"), ascii("removed")};
+    private static final byte[] LIGHT_TEXT = ascii("Light ");
+    private static final byte[] THERMOSTAT_TEXT = ascii("Thermostat ");
+    private static final byte[] DOOR_TEXT = ascii("Door ");
+    private static final byte[] DEVICE_TEXT = ascii("Device ");
+    private static final byte[] IS_ON = ascii(" is On\n");
+    private static final byte[] IS_OFF = ascii(" is Off\n");
+    private static final byte[] IS_SET_TO = ascii(" is set to ");
+    private static final byte[] DEGREES = ascii(" degrees\n");
+    private static final byte[] IS_LOCKED = ascii(" is Locked\n");
+    private static final byte[] IS_UNLOCKED = ascii(" is Unlocked\n");
+    private static final byte[] REMOVED_TEXT = ascii(" removed\n");
+
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private WritableByteChannel out;
+    private SnapshotFormat format;
+    private long bytesWritten;
+    private int records;
+
+    public SnapshotWriter(int bufferBytes) {
+        if (bufferBytes < MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferBytes);
+        }
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    void begin(WritableByteChannel out, SnapshotFormat format, long since, long upTo, boolean full) {
+        this.out = out;
+        this.format = format;
+        this.bytesWritten = 0;
+        this.records = 0;
+        buffer.clear();
+        switch (format) {
+            case BINARY -> buffer.putInt(BINARY_MAGIC).putLong(since).putLong(upTo).put((byte) (full ? 1 : 0));
+            case CSV -> {
+                put(ascii("# since="));
+                putDecimal(since);
+                put(ascii(",upto="));
+                putDecimal(upTo);
+                put(ascii(full ? ",full=true\nid,type,value,version\n" : ",full=false\nid,type,value,version\n"));
+            }
+            case TEXT -> { }
+        }
+    }
+
+    // Kind is one of the DeviceRegistry type constants; booleans are 1 or 0
+    void device(int kind, int id, int value, long version) {
+        ensureRoom();
+        records++;
+        switch (format) {
+            case BINARY -> buffer.put((byte) kind).putInt(id).putInt(value).putLong(version);
+            case CSV -> csv(CSV_TYPES[kind], id, value, version);
+            case TEXT -> {
+                switch (kind) {
+                    case DeviceRegistry.LIGHT -> {
+                        put(LIGHT_TEXT);
+                        putDecimal(id);
+                        put(value != 0 ? IS_ON : IS_OFF);
+                    }
+                    case DeviceRegistry.THERMOSTAT -> {
+                        put(THERMOSTAT_TEXT);
+                        putDecimal(id);
+                        put(IS_SET_TO);
+                        putDecimal(value);
+                        put(DEGREES);
+                    }
+                    default -> {
+                        put(DOOR_TEXT);
+                        putDecimal(id);
+                        put(value != 0 ? IS_LOCKED : IS_UNLOCKED);
+                    }
+                }
+            }
+        }
+    }
+
+    void removed(int id, long version) {
+        ensureRoom();
+        records++;
+        switch (format) {
+            case BINARY -> buffer.put(REMOVED).putInt(id).putInt(0).putLong(version);
+            case CSV -> csv(CSV_TYPES[REMOVED], id, 0, version);
+            case TEXT -> {
+                put(DEVICE_TEXT);
+                putDecimal(id);
+                put(REMOVED_TEXT);
+            }
+        }
+    }
+
+    // Flush what is left; returns the total bytes written
+    long finish() {
+        if (format == SnapshotFormat.BINARY) {
+            ensureRoom();
+            buffer.put(END);
+        }
+        drain();
+        out = null;
+        return bytesWritten;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void csv(byte[] type, int id, int value, long version) {
+        putDecimal(id);
+        buffer.put((byte) ',');
+        put(type);
+        buffer.put((byte) ',');
+        putDecimal(value);
+        buffer.put((byte) ',');
+        putDecimal(version);
+        buffer.put((byte) '\n');
+    }
+
+    private void ensureRoom() {
+        if (buffer.remaining() < MAX_RECORD_BYTES) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                bytesWritten += out.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write snapshot", e);
+        }
+        buffer.clear();
+    }
+
+    private void put(byte[] bytes) {
+        buffer.put(bytes);
+    }
+
+    private void putDecimal(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                put(ascii("9223372036854775808"));
+                return;
+            }
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, position, digits.length - position);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
+
+// Device store keyed by primitive id. State lives in one column table per device type,
+// so scans walk flat arrays and a device costs a few bytes instead of an object.
+// Device objects handed out by get() are thin handles onto a row.
+// Thread-safe: adds, removes, tags and group commands take the write lock; single-device updates
+// share the read lock and update their row atomically. Changes are published after unlocking.
+class DeviceRegistry {
+    static final int LIGHT = 0;
+    static final int THERMOSTAT = 1;
+    static final int DOOR_LOCK = 2;
+    private static final int KIND_SHIFT = 29;
+    private static final int ROW_MASK = (1 << KIND_SHIFT) - 1;
+
+    private final DeviceEventBus eventBus;
+    // id -> kind in the top bits, row below
+    private final IntIntMap index = new IntIntMap(16);
+    private final BitColumnTable lights = new BitColumnTable();
+    private final IntColumnTable thermostats = new IntColumnTable();
+    private final BitColumnTable locks = new BitColumnTable();
+    private final Map<String, Integer> tagBits = new HashMap<>();
+    // Devices of a provider type rather than the built-in type of their kind; rows only record
+    // the kind, and the journal and snapshots likewise, so a restart reverts them to built-ins
+    private final Map<Integer, DeviceTypeInfo> providedTypes = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Bumped by every change; rows remember the version of their last change
+    private final AtomicLong version = new AtomicLong();
+    // Recently removed ids and the version they were removed at, oldest first, so deltas can
+    // report removals; older entries are dropped and deltas from before them become full snapshots
+    private int[] removedIds = new int[16];
+    private long[] removedVersions = new long[16];
+    private int removedCount;
+    private long removalHorizon;
+    // Sees every change while attached; state changes are written under the lock that made them,
+    // so the journal holds them in the order they took effect
+    private volatile HubJournal journal;
+
+    static final int MAX_REMOVALS_KEPT = 64 * 1024;
+
+    // Tables larger than this are split into chunks and updated in parallel by group commands;
+    // a multiple of 64 so no two chunks share a bitset word
+    static final int PARTITION_ROWS = 16 * 1024;
+
+    // Changes are published to the bus when one is given
+    public DeviceRegistry(DeviceEventBus eventBus) {
+        this.eventBus = eventBus;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(int id) {
+        lock.readLock().lock();
+        try {
+            return index.get(id) != IntIntMap.MISSING;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Copy a device's current state in and rebind the object to this registry;
+    // an existing device with the same id is replaced
+    public void add(SmartDevice device) {
+        int id = device.getId();
+        switch (kindOf(device)) {
+            case LIGHT -> addLight(id, device.readAttribute(DeviceAttribute.ON) != 0);
+            case THERMOSTAT -> addThermostat(id, device.readAttribute(DeviceAttribute.TEMPERATURE));
+            default -> addDoorLock(id, device.readAttribute(DeviceAttribute.LOCKED) != 0);
+        }
+        device.bind(this);
+    }
+
+    // As add, remembering the factory type the device was created as, e.g. "plug"
+    public void add(SmartDevice device, String type) {
+        DeviceTypeInfo info = SmartDeviceFactory.typeInfo(type);
+        if (kindOf(device) != info.getKind()) {
+            throw new IllegalArgumentException(device.getClass().getSimpleName() + " " + device.getId()
+                    + " is not stored as a " + info.getName());
+        }
+        lock.writeLock().lock();
+        try {
+            add(device);
+            recordType(device.getId(), info);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int kindOf(SmartDevice device) {
+        if (device instanceof Light) {
+            return LIGHT;
+        } else if (device instanceof Thermostat) {
+            return THERMOSTAT;
+        } else if (device instanceof DoorLock) {
+            return DOOR_LOCK;
+        }
+        throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getSimpleName());
+    }
+
+    // Caller holds the write lock; built-in types are implied by the row kind
+    private void recordType(int id, DeviceTypeInfo type) {
+        if (!BuiltInDeviceType.isBuiltIn(type)) {
+            providedTypes.put(id, type);
+        }
+    }
+
+    public void addLight(int id, boolean on) {
+        lock.writeLock().lock();
+        try {
+            remove(id);
+            int row = lights.addRow(id, version.incrementAndGet());
+            lights.set(row, on);
+            index.put(id, entry(LIGHT, row));
+            journalAdd(LIGHT, id, on ? 1 : 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addThermostat(int id, int temperature) {
+        lock.writeLock().lock();
+        try {
+            remove(id);
+            int row = thermostats.addRow(id, version.incrementAndGet());
+            thermostats.values[row] = temperature;
+            index.put(id, entry(THERMOSTAT, row));
+            journalAdd(THERMOSTAT, id, temperature);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addDoorLock(int id, boolean locked) {
+        lock.writeLock().lock();
+        try {
+            remove(id);
+            int row = locks.addRow(id, version.incrementAndGet());
+            locks.set(row, locked);
+            index.put(id, entry(DOOR_LOCK, row));
+            journalAdd(DOOR_LOCK, id, locked ? 1 : 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Add a run of devices of one type under a single lock acquisition; values are read as for
+    // the single-device methods and existing ids are replaced
+    void addAll(DeviceTypeInfo type, int[] ids, int[] values, int count) {
+        int kind = type.getKind();
+        lock.writeLock().lock();
+        try {
+            DeviceTable table = table(kind);
+            for (int i = 0; i < count; i++) {
+                int id = ids[i];
+                if (index.get(id) != IntIntMap.MISSING) {
+                    remove(id);
+                }
+                int row = table.addRow(id, version.incrementAndGet());
+                if (kind == THERMOSTAT) {
+                    thermostats.values[row] = values[i];
+                } else {
+                    ((BitColumnTable) table).set(row, values[i] != 0);
+                }
+                index.put(id, entry(kind, row));
+                recordType(id, type);
+                journalAdd(kind, id, kind == THERMOSTAT ? values[i] : values[i] != 0 ? 1 : 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(int id) {
+        lock.writeLock().lock();
+        try {
+            int entry = index.remove(id);
+            if (entry == IntIntMap.MISSING) {
+                return false;
+            }
+            int kind = entry >>> KIND_SHIFT;
+            int moved = table(kind).removeRow(entry & ROW_MASK);
+            if (moved != IntIntMap.MISSING) {
+                index.put(moved, entry);
+            }
+            if (!providedTypes.isEmpty()) {
+                providedTypes.remove(id);
+            }
+            recordRemoval(id, version.incrementAndGet());
+            HubJournal attached = journal;
+            if (attached != null) {
+                attached.deviceRemoved(id);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void journalAdd(int kind, int id, int value) {
+        HubJournal attached = journal;
+        if (attached != null) {
+            attached.deviceAdded(kind, id, value);
+        }
+    }
+
+    private void journalChange(int id, DeviceAttribute attribute, int value) {
+        HubJournal attached = journal;
+        if (attached != null) {
+            attached.stateChanged(id, attribute, value);
+        }
+    }
+
+    private void recordRemoval(int id, long removedAt) {
+        if (removedCount == MAX_REMOVALS_KEPT) {
+            int dropped = MAX_REMOVALS_KEPT / 2;
+            removalHorizon = removedVersions[dropped - 1];
+            System.arraycopy(removedIds, dropped, removedIds, 0, removedCount - dropped);
+            System.arraycopy(removedVersions, dropped, removedVersions, 0, removedCount - dropped);
+            removedCount -= dropped;
+        }
+        if (removedCount == removedIds.length) {
+            removedIds = Arrays.copyOf(removedIds, removedCount * 2);
+            removedVersions = Arrays.copyOf(removedVersions, removedCount * 2);
+        }
+        removedIds[removedCount] = id;
+        removedVersions[removedCount] = removedAt;
+        removedCount++;
+    }
+
+    public long version() {
+        return version.get();
+    }
+
+    // A fresh handle onto the device, or null
+    public SmartDevice get(int id) {
+        int entry = lookup(id);
+        if (entry == IntIntMap.MISSING) {
+            return null;
+        }
+        return switch (entry >>> KIND_SHIFT) {
+            case LIGHT -> new Light(id, this);
+            case THERMOSTAT -> new Thermostat(id, this);
+            default -> new DoorLock(id, this);
+        };
+    }
+
+    // Display name of the device's type, e.g. "Light", or null
+    public String typeName(int id) {
+        lock.readLock().lock();
+        try {
+            int entry = index.get(id);
+            if (entry == IntIntMap.MISSING) {
+                return null;
+            }
+            return typeOf(id, entry >>> KIND_SHIFT).getDisplayName();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private DeviceTypeInfo typeOf(int id, int kind) {
+        DeviceTypeInfo provided = providedTypes.isEmpty() ? null : providedTypes.get(id);
+        return provided != null ? provided : BuiltInDeviceType.ofKind(kind).getInfo();
+    }
+
+    // Lights switch on and doors unlock; anything else ignores it
+    public void turnOn(int id) {
+        switchTo(id, true);
+    }
+
+    public void turnOff(int id) {
+        switchTo(id, false);
+    }
+
+    private void switchTo(int id, boolean on) {
+        DeviceAttribute attribute;
+        boolean value;
+        boolean previous;
+        lock.readLock().lock();
+        try {
+            int entry = require(id);
+            int row = entry & ROW_MASK;
+            switch (entry >>> KIND_SHIFT) {
+                case LIGHT -> {
+                    attribute = DeviceAttribute.ON;
+                    value = on;
+                    previous = lights.exchange(row, value);
+                    if (previous != value) {
+                        lights.touch(row, version.incrementAndGet());
+                        journalChange(id, attribute, value ? 1 : 0);
+                    }
+                }
+                case DOOR_LOCK -> {
+                    attribute = DeviceAttribute.LOCKED;
+                    value = !on;
+                    previous = locks.exchange(row, value);
+                    if (previous != value) {
+                        locks.touch(row, version.incrementAndGet());
+                        journalChange(id, attribute, value ? 1 : 0);
+                    }
+                }
+                default -> {
+                    return;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (previous != value && eventBus != null) {
+            eventBus.publish(id, attribute, previous ? 1 : 0, value ? 1 : 0);
+        }
+    }
+
+    // Returns false if the device is not a thermostat
+    public boolean setTemperature(int id, int temperature) {
+        int previous;
+        lock.readLock().lock();
+        try {
+            int entry = index.get(id);
+            if (entry == IntIntMap.MISSING || entry >>> KIND_SHIFT != THERMOSTAT) {
+                return false;
+            }
+            int row = entry & ROW_MASK;
+            previous = thermostats.exchange(row, temperature);
+            if (previous != temperature) {
+                thermostats.touch(row, version.incrementAndGet());
+                journalChange(id, DeviceAttribute.TEMPERATURE, temperature);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (previous != temperature && eventBus != null) {
+            eventBus.publish(id, DeviceAttribute.TEMPERATURE, previous, temperature);
+        }
+        return true;
+    }
+
+    public boolean hasAttribute(int id, DeviceAttribute attribute) {
+        int entry = lookup(id);
+        return entry != IntIntMap.MISSING && attributeOf(entry >>> KIND_SHIFT) == attribute;
+    }
+
+    // Booleans read as 1 or 0
+    public int readAttribute(int id, DeviceAttribute attribute) {
+        lock.readLock().lock();
+        try {
+            int entry = require(id);
+            int kind = entry >>> KIND_SHIFT;
+            requireAttribute(kind, attribute);
+            int row = entry & ROW_MASK;
+            return switch (kind) {
+                case LIGHT -> lights.get(row) ? 1 : 0;
+                case THERMOSTAT -> thermostats.get(row);
+                default -> locks.get(row) ? 1 : 0;
+            };
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Whether any device with the attribute has a value accepted by the test; scans one column.
+    // Rows being updated concurrently may be seen with either their old or new value.
+    public boolean anyMatch(DeviceAttribute attribute, IntPredicate test) {
+        lock.readLock().lock();
+        try {
+            if (attribute == DeviceAttribute.TEMPERATURE) {
+                int[] values = thermostats.values;
+                for (int row = 0, n = thermostats.size; row < n; row++) {
+                    if (test.test(values[row])) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            BitColumnTable table = attribute == DeviceAttribute.ON ? lights : locks;
+            boolean acceptsOne = test.test(1);
+            boolean acceptsZero = test.test(0);
+            return (acceptsOne && table.contains(true)) || (acceptsZero && table.contains(false));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String status(int id) {
+        lock.readLock().lock();
+        try {
+            int entry = require(id);
+            return status(entry >>> KIND_SHIFT, id, entry & ROW_MASK);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Tag names are interned to bits, so a registry supports at most 64 distinct tags
+    public void tag(int id, String tag) {
+        lock.writeLock().lock();
+        try {
+            int entry = require(id);
+            Integer bit = tagBits.get(tag);
+            if (bit == null) {
+                if (tagBits.size() == Long.SIZE) {
+                    throw new IllegalStateException("Too many tags, cannot add " + tag);
+                }
+                bit = tagBits.size();
+                tagBits.put(tag, bit);
+            }
+            table(entry >>> KIND_SHIFT).tags[entry & ROW_MASK] |= 1L << bit;
+            HubJournal attached = journal;
+            if (attached != null) {
+                attached.tagged(id, tag, true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void untag(int id, String tag) {
+        lock.writeLock().lock();
+        try {
+            int entry = require(id);
+            Integer bit = tagBits.get(tag);
+            if (bit != null) {
+                table(entry >>> KIND_SHIFT).tags[entry & ROW_MASK] &= ~(1L << bit);
+                HubJournal attached = journal;
+                if (attached != null) {
+                    attached.tagged(id, tag, false);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean hasTag(int id, String tag) {
+        lock.readLock().lock();
+        try {
+            int entry = index.get(id);
+            Integer bit = tagBits.get(tag);
+            return entry != IntIntMap.MISSING && bit != null
+                    && (table(entry >>> KIND_SHIFT).tags[entry & ROW_MASK] & (1L << bit)) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Apply one command to every device in the group. Large tables are cut into partitions that
+    // are updated in parallel; the resulting state changes are then published in row order.
+    public GroupCommandResult apply(DeviceGroup group, TriggerAction.Command command, int value) {
+        long start = System.nanoTime();
+        List<PartitionResult> results = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            applyLocked(group, command, value, results);
+            HubJournal attached = journal;
+            if (attached != null) {
+                for (PartitionResult result : results) {
+                    for (int i = 0; i < result.changedCount; i++) {
+                        attached.stateChanged(result.changedIds[i], result.attribute, result.newValues[i]);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        int matched = 0;
+        int changed = 0;
+        int skipped = 0;
+        for (PartitionResult result : results) {
+            matched += result.matched;
+            skipped += result.skipped;
+            changed += result.changedCount;
+            if (eventBus != null) {
+                for (int i = 0; i < result.changedCount; i++) {
+                    eventBus.publish(result.changedIds[i], result.attribute, result.oldValues[i], result.newValues[i]);
+                }
+            }
+        }
+        return new GroupCommandResult(matched, changed, skipped, System.nanoTime() - start);
+    }
+
+    private void applyLocked(DeviceGroup group, TriggerAction.Command command, int value,
+                             List<PartitionResult> results) {
+        long tagMask = 0;
+        for (String tag : group.getTags()) {
+            Integer bit = tagBits.get(tag);
+            if (bit == null) {
+                return;
+            }
+            tagMask |= 1L << bit;
+        }
+        DeviceTypeInfo type = group.getType() == null ? null : SmartDeviceFactory.typeInfo(group.getType());
+        // Rows of the type's kind need their own type checked unless every one is a built-in
+        DeviceTypeInfo rowType = type != null && (!BuiltInDeviceType.isBuiltIn(type) || !providedTypes.isEmpty())
+                ? type : null;
+        // Everything one group command changes shares a version
+        long groupVersion = version.incrementAndGet();
+        for (int kind = LIGHT; kind <= DOOR_LOCK; kind++) {
+            if (type != null && type.getKind() != kind) {
+                continue;
+            }
+            DeviceTable table = table(kind);
+            int partitions = (table.size + PARTITION_ROWS - 1) / PARTITION_ROWS;
+            IntStream stream = IntStream.range(0, partitions);
+            if (partitions > 1) {
+                stream = stream.parallel();
+            }
+            final int tableKind = kind;
+            final long requiredTags = tagMask;
+            stream.mapToObj(p -> applyPartition(tableKind, p * PARTITION_ROWS,
+                            Math.min(table.size, (p + 1) * PARTITION_ROWS), group, rowType, requiredTags, command,
+                            value, groupVersion))
+                    .forEachOrdered(results::add);
+        }
+    }
+
+    // Touches only rows [from, to) of one table, so partitions can run concurrently
+    private PartitionResult applyPartition(int kind, int from, int to, DeviceGroup group, DeviceTypeInfo rowType,
+                                           long tagMask, TriggerAction.Command command, int value,
+                                           long groupVersion) {
+        DeviceTable table = table(kind);
+        PartitionResult result = new PartitionResult(attributeOf(kind));
+        boolean supported = switch (kind) {
+            case THERMOSTAT -> command == TriggerAction.Command.SET_TEMPERATURE;
+            default -> command != TriggerAction.Command.SET_TEMPERATURE;
+        };
+        boolean everyRow = tagMask == 0 && group.coversAllIds() && rowType == null;
+        if (kind == THERMOSTAT) {
+            int[] values = thermostats.values;
+            for (int row = from; row < to; row++) {
+                if (!everyRow && !selects(group, rowType, kind, table.ids[row], table.tags[row], tagMask)) {
+                    continue;
+                }
+                result.matched++;
+                if (!supported) {
+                    result.skipped++;
+                } else if (values[row] != value) {
+                    result.record(table.ids[row], values[row], value);
+                    values[row] = value;
+                    table.touch(row, groupVersion);
+                }
+            }
+            return result;
+        }
+        BitColumnTable bits = (BitColumnTable) table;
+        boolean target = (command == TriggerAction.Command.TURN_ON) == (kind == LIGHT);
+        // A word at a time: build the mask of selected rows, then flip only the bits that differ
+        for (int word = from >>> 6, lastWord = (to - 1) >>> 6; word <= lastWord; word++) {
+            int base = word << 6;
+            int rows = Math.min(64, to - base);
+            long mask = 0;
+            if (everyRow) {
+                mask = rows == 64 ? -1L : (1L << rows) - 1;
+            } else {
+                for (int i = 0; i < rows; i++) {
+                    if (selects(group, rowType, kind, table.ids[base + i], table.tags[base + i], tagMask)) {
+                        mask |= 1L << i;
+                    }
+                }
+            }
+            int selected = Long.bitCount(mask);
+            result.matched += selected;
+            if (!supported) {
+                result.skipped += selected;
+                continue;
+            }
+            long current = bits.bits[word];
+            long updated = target ? current | mask : current & ~mask;
+            for (long diff = current ^ updated; diff != 0; diff &= diff - 1) {
+                int row = base + Long.numberOfTrailingZeros(diff);
+                result.record(table.ids[row], target ? 0 : 1, target ? 1 : 0);
+                table.touch(row, groupVersion);
+            }
+            bits.bits[word] = updated;
+        }
+        return result;
+    }
+
+    // Only reads the type map, so partitions may call it concurrently
+    private boolean selects(DeviceGroup group, DeviceTypeInfo rowType, int kind, int id, long rowTags, long tagMask) {
+        return group.matches(id, rowTags, tagMask) && (rowType == null || typeOf(id, kind) == rowType);
+    }
+
+    // Per-partition tally plus the changes it made, kept for publishing afterwards
+    private static class PartitionResult {
+        final DeviceAttribute attribute;
+        int matched;
+        int skipped;
+        int changedCount;
+        int[] changedIds = new int[0];
+        int[] oldValues = new int[0];
+        int[] newValues = new int[0];
+
+        PartitionResult(DeviceAttribute attribute) {
+            this.attribute = attribute;
+        }
+
+        void record(int id, int oldValue, int newValue) {
+            if (changedCount == changedIds.length) {
+                int capacity = Math.max(16, changedCount * 2);
+                changedIds = Arrays.copyOf(changedIds, capacity);
+                oldValues = Arrays.copyOf(oldValues, capacity);
+                newValues = Arrays.copyOf(newValues, capacity);
+            }
+            changedIds[changedCount] = id;
+            oldValues[changedCount] = oldValue;
+            newValues[changedCount] = newValue;
+            changedCount++;
+        }
+    }
+
+    // Stream every device changed after sinceVersion (0 for all) through the writer and return
+    // the version the output is complete up to, to pass as sinceVersion next time. The version is
+    // read under the write lock, when no update is half done, and the lock is then downgraded so
+    // single-device commands keep running while the output is written; a row changed mid-scan may
+    // be written now and again in the next delta. Removals come first, so a consumer applying the
+    // records in order ends up with the registry's state.
+    public long writeSnapshot(SnapshotWriter writer, WritableByteChannel out, SnapshotFormat format,
+                              long sinceVersion) {
+        long upTo;
+        lock.writeLock().lock();
+        try {
+            upTo = version.get();
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            // Removals older than the log reaches cannot be reported, so send everything
+            boolean full = sinceVersion <= 0 || sinceVersion < removalHorizon;
+            long since = full ? 0 : sinceVersion;
+            writer.begin(out, format, since, upTo, full);
+            if (!full) {
+                for (int i = 0; i < removedCount; i++) {
+                    if (removedVersions[i] > since) {
+                        writer.removed(removedIds[i], removedVersions[i]);
+                    }
+                }
+            }
+            for (int kind = LIGHT; kind <= DOOR_LOCK; kind++) {
+                DeviceTable table = table(kind);
+                for (int block = 0, blocks = (table.size + 63) >>> 6; block < blocks; block++) {
+                    if (table.blockVersions[block] <= since) {
+                        continue;
+                    }
+                    for (int row = block << 6, end = Math.min(table.size, row + 64); row < end; row++) {
+                        if (table.versions[row] > since) {
+                            writer.device(kind, table.ids[row], value(kind, row), table.versions[row]);
+                        }
+                    }
+                }
+            }
+            writer.finish();
+            return upTo;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void setJournal(HubJournal journal) {
+        this.journal = journal;
+    }
+
+    // Run with the write lock held, so the body sees no half-done update and nothing changes
+    // until it returns
+    void exclusive(Runnable body) {
+        lock.writeLock().lock();
+        try {
+            body.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    interface DeviceVisitor {
+        void visit(int kind, int id, int value, long tags);
+    }
+
+    // Every device with its tag bits; see tagNames for what the bits mean
+    void forEachDevice(DeviceVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int kind = LIGHT; kind <= DOOR_LOCK; kind++) {
+                DeviceTable table = table(kind);
+                for (int row = 0; row < table.size; row++) {
+                    visitor.visit(kind, table.ids[row], value(kind, row), table.tags[row]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Tag names indexed by bit
+    List<String> tagNames() {
+        lock.readLock().lock();
+        try {
+            String[] names = new String[tagBits.size()];
+            tagBits.forEach((name, bit) -> names[bit] = name);
+            return Arrays.asList(names);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Bring back state saved by a previous run. Versions continue after the saved one, and older
+    // deltas are answered with full snapshots since the removals they would need are gone.
+    void restoreVersion(long savedVersion) {
+        lock.writeLock().lock();
+        try {
+            version.set(Math.max(version.get(), savedVersion));
+            removalHorizon = version.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Tags must be restored before the devices that carry them, so the bits line up
+    void restoreTags(List<String> names) {
+        lock.writeLock().lock();
+        try {
+            for (String name : names) {
+                if (!tagBits.containsKey(name)) {
+                    if (tagBits.size() == Long.SIZE) {
+                        throw new IllegalStateException("Too many tags, cannot add " + name);
+                    }
+                    tagBits.put(name, tagBits.size());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void restoreDevice(int kind, int id, int value, long tags) {
+        lock.writeLock().lock();
+        try {
+            switch (kind) {
+                case LIGHT -> addLight(id, value != 0);
+                case THERMOSTAT -> addThermostat(id, value);
+                case DOOR_LOCK -> addDoorLock(id, value != 0);
+                default -> throw new IllegalArgumentException("Unknown device kind: " + kind);
+            }
+            int entry = index.get(id);
+            table(kind).tags[entry & ROW_MASK] = tags;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int value(int kind, int row) {
+        return switch (kind) {
+            case LIGHT -> lights.get(row) ? 1 : 0;
+            case THERMOSTAT -> thermostats.get(row);
+            default -> locks.get(row) ? 1 : 0;
+        };
+    }
+
+    private String status(int kind, int id, int row) {
+        return describe(kind, id, switch (kind) {
+            case LIGHT -> lights.get(row) ? 1 : 0;
+            case THERMOSTAT -> thermostats.get(row);
+            default -> locks.get(row) ? 1 : 0;
+        });
+    }
+
+    // Also used by devices that are not in a registry; booleans are given as 1 or 0
+    static String describe(int kind, int id, int value) {
+        return switch (kind) {
+            case LIGHT -> "Light " + id + " is " + (value != 0 ? "On" : "Off");
+            case THERMOSTAT -> "Thermostat " + id + " is set to " + value + " degrees";
+            default -> "Door " + id + " is " + (value != 0 ? "Locked" : "Unlocked");
+        };
+    }
+
+    static void requireAttribute(int kind, DeviceAttribute attribute) {
+        if (attributeOf(kind) != attribute) {
+            throw new IllegalArgumentException(statusName(kind) + " has no " + attribute.getKeyword());
+        }
+    }
+
+    private int lookup(int id) {
+        lock.readLock().lock();
+        try {
+            return index.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private int require(int id) {
+        int entry = index.get(id);
+        if (entry == IntIntMap.MISSING) {
+            throw new IllegalStateException("Device " + id + " is not registered");
+        }
+        return entry;
+    }
+
+    private DeviceTable table(int kind) {
+        return switch (kind) {
+            case LIGHT -> lights;
+            case THERMOSTAT -> thermostats;
+            default -> locks;
+        };
+    }
+
+    private static DeviceAttribute attributeOf(int kind) {
+        return switch (kind) {
+            case LIGHT -> DeviceAttribute.ON;
+            case THERMOSTAT -> DeviceAttribute.TEMPERATURE;
+            default -> DeviceAttribute.LOCKED;
+        };
+    }
+
+    private static String statusName(int kind) {
+        return switch (kind) {
+            case LIGHT -> "Light";
+            case THERMOSTAT -> "Thermostat";
+            default -> "Door";
+        };
+    }
+
+    private static int entry(int kind, int row) {
+        if (row > ROW_MASK) {
+            throw new IllegalStateException("Device table full");
+        }
+        return (kind << KIND_SHIFT) | row;
+    }
+}
+
+// Immutable description of a device type, shared by every device of that type
+class DeviceTypeInfo {
+    private final String name;
+    private final String displayName;
+    private final int kind;
+    private final DeviceAttribute attribute;
+    private final int defaultValue;
+
+    // kind is the registry row kind the type is stored as, e.g. DeviceRegistry.LIGHT
+    public DeviceTypeInfo(String name, String displayName, int kind, DeviceAttribute attribute, int defaultValue) {
+        if (kind < DeviceRegistry.LIGHT || kind > DeviceRegistry.DOOR_LOCK) {
+            throw new IllegalArgumentException("Unknown device kind: " + kind);
+        }
+        this.name = name.toLowerCase();
+        this.displayName = displayName;
+        this.kind = kind;
+        this.attribute = attribute;
+        this.defaultValue = defaultValue;
+    }
+
+    // As used in manifests, e.g. "light"
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public DeviceAttribute getAttribute() {
+        return attribute;
+    }
+
+    public int getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + displayName + ", " + attribute.getKeyword() + " " + defaultValue + ")";
+    }
+}
+
+// A device type the factory can create. Types beyond the built-in ones are added with
+// SmartDeviceFactory.register, or found by ServiceLoader through a META-INF/services entry.
+// Every type is stored as one of the registry's three kinds of row.
+interface DeviceTypeProvider {
+    DeviceTypeInfo getInfo();
+
+    // A standalone device in the type's default state
+    SmartDevice create(int id);
+}
+
+enum BuiltInDeviceType implements DeviceTypeProvider {
+    LIGHT(new DeviceTypeInfo("light", "Light", DeviceRegistry.LIGHT, DeviceAttribute.ON, 0)),
+    THERMOSTAT(new DeviceTypeInfo("thermostat", "Thermostat", DeviceRegistry.THERMOSTAT,
+            DeviceAttribute.TEMPERATURE, 70)),
+    DOOR(new DeviceTypeInfo("door", "DoorLock", DeviceRegistry.DOOR_LOCK, DeviceAttribute.LOCKED, 1));
+
+    private final DeviceTypeInfo info;
+
+    BuiltInDeviceType(DeviceTypeInfo info) {
+        this.info = info;
+    }
+
+    @Override
+    public DeviceTypeInfo getInfo() {
+        return info;
+    }
+
+    // The built-in type a registry row of this kind is unless recorded otherwise
+    static BuiltInDeviceType ofKind(int kind) {
+        return switch (kind) {
+            case DeviceRegistry.LIGHT -> LIGHT;
+            case DeviceRegistry.THERMOSTAT -> THERMOSTAT;
+            default -> DOOR;
+        };
+    }
+
+    static boolean isBuiltIn(DeviceTypeInfo type) {
+        return ofKind(type.getKind()).info == type;
+    }
+
+    @Override
+    public SmartDevice create(int id) {
+        return switch (this) {
+            case LIGHT -> new Light(id);
+            case THERMOSTAT -> new Thermostat(id, info.getDefaultValue());
+            case DOOR -> new DoorLock(id);
+        };
+    }
+}
+
+// Factory for creating smart devices from the registered device types
+class SmartDeviceFactory {
+    private static final Map<String, DeviceTypeProvider> PROVIDERS = new ConcurrentHashMap<>();
+    // Manifest devices are handed to the registry in runs of this many
+    private static final int MANIFEST_BATCH = 4096;
+
+    static {
+        for (BuiltInDeviceType type : BuiltInDeviceType.values()) {
+            register(type);
+        }
+        for (DeviceTypeProvider provider : ServiceLoader.load(DeviceTypeProvider.class)) {
+            register(provider);
+        }
+    }
+
+    public static void register(DeviceTypeProvider provider) {
+        String name = provider.getInfo().getName();
+        if (PROVIDERS.putIfAbsent(name, provider) != null) {
+            throw new IllegalArgumentException("Device type already registered: " + name);
+        }
+    }
+
+    public static DeviceTypeProvider provider(String type) {
+        DeviceTypeProvider provider = PROVIDERS.get(type.toLowerCase());
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown device type: " + type);
+        }
+        return provider;
+    }
+
+    public static DeviceTypeInfo typeInfo(String type) {
+        return provider(type).getInfo();
+    }
+
+    public static Set<String> typeNames() {
+        return new TreeSet<>(PROVIDERS.keySet());
+    }
+
+    public static SmartDevice createDevice(String type, int id) {
+        return provider(type).create(id);
+    }
+
+    // Add every device listed in the manifest straight to the registry, without device objects,
+    // and return how many were added. One device or range per line, blank lines and lines
+    // starting with '#' ignored:
+    //     type,id[,value[,tag;tag...]]      e.g. thermostat,2,72
+    //     type,first-last[,value[,tags]]    e.g. light,100-199,0,floor1;hall
+    // The value defaults to the type's default. Lines apply in order, so a later line replaces
+    // an earlier device with the same id; devices before a malformed line stay added.
+    public static int loadManifest(Path manifest, DeviceRegistry registry) {
+        ManifestBatch batch = new ManifestBatch(registry);
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                if (fields.length < 2 || fields.length > 4) {
+                    throw new IllegalArgumentException("Expected type,ids[,value[,tags]]");
+                }
+                DeviceTypeInfo info = typeInfo(fields[0].trim());
+                String ids = fields[1].trim();
+                int dash = ids.indexOf('-', 1);
+                int first = Integer.parseInt(dash < 0 ? ids : ids.substring(0, dash).trim());
+                int last = dash < 0 ? first : Integer.parseInt(ids.substring(dash + 1).trim());
+                if (last < first) {
+                    throw new IllegalArgumentException("Empty id range: " + ids);
+                }
+                int value = fields.length > 2 && !fields[2].isBlank()
+                        ? Integer.parseInt(fields[2].trim()) : info.getDefaultValue();
+                for (long id = first; id <= last; id++) {
+                    batch.add(info, (int) id, value);
+                }
+                if (fields.length > 3 && !fields[3].isBlank()) {
+                    // Tagging needs the devices in place
+                    batch.flush();
+                    for (String tag : fields[3].split(";")) {
+                        if (tag.isBlank()) {
+                            continue;
+                        }
+                        for (long id = first; id <= last; id++) {
+                            registry.tag((int) id, tag.trim());
+                        }
+                    }
+                }
+            }
+            batch.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read manifest " + manifest, e);
+        } catch (IllegalArgumentException e) {
+            batch.flush();
+            throw new IllegalArgumentException(manifest + ":" + lineNumber + ": " + e.getMessage(), e);
+        }
+        return batch.added;
+    }
+
+    // Consecutive devices of one type, added to the registry together
+    private static class ManifestBatch {
+        private final DeviceRegistry registry;
+        private final int[] ids = new int[MANIFEST_BATCH];
+        private final int[] values = new int[MANIFEST_BATCH];
+        private DeviceTypeInfo type;
+        private int count;
+        int added;
+
+        ManifestBatch(DeviceRegistry registry) {
+            this.registry = registry;
+        }
+
+        void add(DeviceTypeInfo deviceType, int id, int value) {
+            if (count == MANIFEST_BATCH || (count > 0 && deviceType != type)) {
+                flush();
+            }
+            type = deviceType;
+            ids[count] = id;
+            values[count] = value;
+            count++;
+        }
+
+        void flush() {
+            if (count > 0) {
+                registry.addAll(type, ids, values, count);
+                added += count;
+                count = 0;
+            }
+        }
+    }
+}
+
+// Sink for decoded samples, so range queries do not box
+interface SampleConsumer {
+    void accept(long timestamp, double value);
+}
+
+// Downsampling resolutions kept for every series
+enum TelemetryResolution {
+    FIVE_MINUTES(5 * 60_000L),
+    HOUR(60 * 60_000L);
+
+    private final long millis;
+
+    TelemetryResolution(long millis) {
+        this.millis = millis;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+}
+
+// Appends and reads bit strings packed into a growable long[], most significant bit first
+class BitBuffer {
+    long[] words;
+    int bitLength;
+
+    BitBuffer(int initialWords) {
+        words = new long[Math.max(1, initialWords)];
+    }
+
+    BitBuffer(long[] words, int bitLength) {
+        this.words = words;
+        this.bitLength = bitLength;
+    }
+
+    void write(long value, int bits) {
+        if (bits == 0) {
+            return;
+        }
+        int needed = (bitLength + bits + 63) >>> 6;
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+        }
+        value = bits == 64 ? value : value & ((1L << bits) - 1);
+        int offset = bitLength & 63;
+        int word = bitLength >>> 6;
+        int free = 64 - offset;
+        if (bits <= free) {
+            words[word] |= value << (free - bits);
+        } else {
+            words[word] |= value >>> (bits - free);
+            words[word + 1] |= value << (64 - (bits - free));
+        }
+        bitLength += bits;
+    }
+
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    long read(int position, int bits) {
+        if (bits == 0) {
+            return 0;
+        }
+        int offset = position & 63;
+        int word = position >>> 6;
+        int available = 64 - offset;
+        long value;
+        if (bits <= available) {
+            value = words[word] >>> (available - bits);
+        } else {
+            value = (words[word] << (bits - available)) | (words[word + 1] >>> (64 - (bits - available)));
+        }
+        return bits == 64 ? value : value & ((1L << bits) - 1);
+    }
+
+    // Drop the spare capacity once nothing more will be appended
+    void trim() {
+        words = Arrays.copyOf(words, Math.max(1, (bitLength + 63) >>> 6));
+    }
+}
+
+// Gorilla-style chunk: timestamps as delta-of-delta with variable-length buckets, values as
+// the XOR with the previous value, storing only its meaningful bits. Steady readings cost
+// about two bits per sample.
+class TelemetryChunk {
+    static final int MAX_SAMPLES = 1024;
+
+    final long firstTimestamp;
+    final BitBuffer bits;
+    int count;
+    long lastTimestamp;
+
+    // Encoder state, also rebuilt by decoding when a persisted chunk is reopened
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    TelemetryChunk(long firstTimestamp) {
+        this.firstTimestamp = firstTimestamp;
+        this.bits = new BitBuffer(16);
+    }
+
+    TelemetryChunk(long firstTimestamp, long lastTimestamp, int count, BitBuffer bits) {
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.count = count;
+        this.bits = bits;
+    }
+
+    void append(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            bits.write(valueBits, 64);
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeXor(valueBits ^ lastValueBits);
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            bits.write(0b0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            bits.write(0b10, 2);
+            bits.write(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            bits.write(0b110, 3);
+            bits.write(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            bits.write(0b1110, 4);
+            bits.write(dod, 12);
+        } else {
+            bits.write(0b1111, 4);
+            bits.write(dod, 64);
+        }
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            bits.writeBit(false);
+            return;
+        }
+        bits.writeBit(true);
+        int leading = Long.numberOfLeadingZeros(xor);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            // Fits in the previous window
+            bits.writeBit(false);
+            bits.write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+        } else {
+            int meaningful = 64 - leading - trailing;
+            bits.writeBit(true);
+            bits.write(leading, 6);
+            bits.write(meaningful - 1, 6);
+            bits.write(xor >>> trailing, meaningful);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    // Decode samples in [from, to]; returns false once past 'to' so callers can stop early
+    boolean decode(long from, long to, SampleConsumer sink) {
+        return decode(from, to, sink, false);
+    }
+
+    // Restore the encoder state of a loaded chunk so appends can continue
+    void reopen() {
+        if (count > 0) {
+            decode(Long.MIN_VALUE, Long.MAX_VALUE, null, true);
+        }
+    }
+
+    private boolean decode(long from, long to, SampleConsumer sink, boolean restoreState) {
+        int position = 0;
+        long timestamp = firstTimestamp;
+        long delta = 0;
+        long valueBits = bits.read(position, 64);
+        position += 64;
+        int leading = -1;
+        int trailing = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long dod;
+                if (bits.read(position++, 1) == 0) {
+                    dod = 0;
+                } else if (bits.read(position++, 1) == 0) {
+                    dod = signExtend(bits.read(position, 7), 7);
+                    position += 7;
+                } else if (bits.read(position++, 1) == 0) {
+                    dod = signExtend(bits.read(position, 9), 9);
+                    position += 9;
+                } else if (bits.read(position++, 1) == 0) {
+                    dod = signExtend(bits.read(position, 12), 12);
+                    position += 12;
+                } else {
+                    dod = bits.read(position, 64);
+                    position += 64;
+                }
+                delta += dod;
+                timestamp += delta;
+                if (bits.read(position++, 1) == 1) {
+                    if (bits.read(position++, 1) == 1) {
+                        leading = (int) bits.read(position, 6);
+                        int meaningful = (int) bits.read(position + 6, 6) + 1;
+                        position += 12;
+                        trailing = 64 - leading - meaningful;
+                    }
+                    int meaningful = 64 - leading - trailing;
+                    valueBits ^= bits.read(position, meaningful) << trailing;
+                    position += meaningful;
+                }
+            }
+            if (timestamp > to) {
+                return false;
+            }
+            if (timestamp >= from && sink != null) {
+                sink.accept(timestamp, Double.longBitsToDouble(valueBits));
+            }
+            if (restoreState && i == count - 1) {
+                lastDelta = delta;
+                lastValueBits = valueBits;
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+        return true;
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
+
+// Min/max/sum/count per fixed-width time bucket. Samples arrive in time order, so buckets are
+// appended in order and only non-empty ones are stored; long gaps cost nothing.
+class TelemetryRollup {
+    private final long width;
+    private long[] starts = new long[8];
+    private double[] min = new double[8];
+    private double[] max = new double[8];
+    private double[] sum = new double[8];
+    private int[] count = new int[8];
+    private int size;
+
+    TelemetryRollup(long width) {
+        this.width = width;
+    }
+
+    void add(long timestamp, double value) {
+        long start = Math.floorDiv(timestamp, width) * width;
+        if (size == 0 || starts[size - 1] != start) {
+            if (size == starts.length) {
+                int capacity = size * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+                sum = Arrays.copyOf(sum, capacity);
+                count = Arrays.copyOf(count, capacity);
+            }
+            starts[size] = start;
+            min[size] = value;
+            max[size] = value;
+            sum[size] = 0;
+            count[size] = 0;
+            size++;
+        }
+        int last = size - 1;
+        min[last] = Math.min(min[last], value);
+        max[last] = Math.max(max[last], value);
+        sum[last] += value;
+        count[last]++;
+    }
+
+    // Buckets starting within [from, to]
+    TelemetrySummary query(long from, long to) {
+        TelemetrySummary summary = new TelemetrySummary(width);
+        int first = Arrays.binarySearch(starts, 0, size, from);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        for (int i = first; i < size && starts[i] <= to; i++) {
+            summary.add(starts[i], min[i], max[i], sum[i] / count[i], count[i]);
+        }
+        return summary;
+    }
+}
+
+// Result of a rollup query, one entry per non-empty bucket, as parallel primitive arrays
+class TelemetrySummary {
+    private final long bucketMillis;
+    private long[] bucketStarts = new long[8];
+    private double[] min = new double[8];
+    private double[] max = new double[8];
+    private double[] mean = new double[8];
+    private int[] count = new int[8];
+    private int size;
+
+    TelemetrySummary(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    void add(long bucketStart, double bucketMin, double bucketMax, double bucketMean, int bucketCount) {
+        if (size == bucketStarts.length) {
+            int capacity = size * 2;
+            bucketStarts = Arrays.copyOf(bucketStarts, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            mean = Arrays.copyOf(mean, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+        bucketStarts[size] = bucketStart;
+        min[size] = bucketMin;
+        max[size] = bucketMax;
+        mean[size] = bucketMean;
+        count[size] = bucketCount;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getBucketStart(int i) {
+        return bucketStarts[i];
+    }
+
+    public double getMin(int i) {
+        return min[i];
+    }
+
+    public double getMax(int i) {
+        return max[i];
+    }
+
+    public double getMean(int i) {
+        return mean[i];
+    }
+
+    public int getCount(int i) {
+        return count[i];
+    }
+}
+
+// One metric of one device: sealed chunks plus the open one, and the rollups
+class TelemetrySeries {
+    final int deviceId;
+    final DeviceAttribute attribute;
+    final List<TelemetryChunk> chunks = new ArrayList<>();
+    final TelemetryRollup[] rollups = new TelemetryRollup[TelemetryResolution.values().length];
+    long sampleCount;
+
+    TelemetrySeries(int deviceId, DeviceAttribute attribute) {
+        this.deviceId = deviceId;
+        this.attribute = attribute;
+        for (TelemetryResolution resolution : TelemetryResolution.values()) {
+            rollups[resolution.ordinal()] = new TelemetryRollup(resolution.getMillis());
+        }
+    }
+
+    synchronized void append(long timestamp, double value) {
+        TelemetryChunk open = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (open != null && timestamp < open.lastTimestamp) {
+            throw new IllegalArgumentException("Out-of-order sample for device " + deviceId + ": "
+                    + timestamp + " < " + open.lastTimestamp);
+        }
+        if (open == null || open.count == TelemetryChunk.MAX_SAMPLES) {
+            if (open != null) {
+                open.bits.trim();
+            }
+            open = new TelemetryChunk(timestamp);
+            chunks.add(open);
+        }
+        open.append(timestamp, value);
+        for (TelemetryRollup rollup : rollups) {
+            rollup.add(timestamp, value);
+        }
+        sampleCount++;
+    }
+
+    synchronized void query(long from, long to, SampleConsumer sink) {
+        // Chunks are in time order; find the first that may overlap
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunks.get(mid).lastTimestamp < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < chunks.size(); i++) {
+            TelemetryChunk chunk = chunks.get(i);
+            if (chunk.firstTimestamp > to || !chunk.decode(from, to, sink)) {
+                return;
+            }
+        }
+    }
+
+    synchronized long compressedBytes() {
+        long bytes = 0;
+        for (TelemetryChunk chunk : chunks) {
+            bytes += (chunk.bits.bitLength + 7) / 8;
+        }
+        return bytes;
+    }
+}
+
+// In-process time-series store for device metrics, e.g. thermostat temperatures. Samples are
+// compressed per device into Gorilla-style chunks and also folded into 5-minute and hourly
+// rollups, so long ranges can be charted without decoding raw samples.
+class TelemetryStore {
+    private static final int FILE_MAGIC = 0x53485431; // "SHT1"
+
+    private final Map<Long, TelemetrySeries> series = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Samples for one series must arrive in timestamp order
+    public void record(int deviceId, DeviceAttribute attribute, long timestamp, double value) {
+        seriesFor(deviceId, attribute, true).append(timestamp, value);
+    }
+
+    public void query(int deviceId, DeviceAttribute attribute, long from, long to, SampleConsumer sink) {
+        TelemetrySeries found = seriesFor(deviceId, attribute, false);
+        if (found != null) {
+            found.query(from, to, sink);
+        }
+    }
+
+    // Buckets of the given resolution that start within [from, to]
+    public TelemetrySummary rollup(int deviceId, DeviceAttribute attribute, TelemetryResolution resolution,
+                                   long from, long to) {
+        TelemetrySeries found = seriesFor(deviceId, attribute, false);
+        if (found == null) {
+            return new TelemetrySummary(resolution.getMillis());
+        }
+        synchronized (found) {
+            return found.rollups[resolution.ordinal()].query(from, to);
+        }
+    }
+
+    public long sampleCount() {
+        long total = 0;
+        for (TelemetrySeries each : allSeries()) {
+            synchronized (each) {
+                total += each.sampleCount;
+            }
+        }
+        return total;
+    }
+
+    public long compressedBytes() {
+        long total = 0;
+        for (TelemetrySeries each : allSeries()) {
+            total += each.compressedBytes();
+        }
+        return total;
+    }
+
+    // Write every series to a temporary file next to the target, then move it into place, so a
+    // crash mid-save leaves the previous file intact. Rollups are rebuilt on load.
+    public void save(Path file) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            List<TelemetrySeries> snapshot = allSeries();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(FILE_MAGIC).putInt(snapshot.size());
+            for (TelemetrySeries each : snapshot) {
+                synchronized (each) {
+                    buffer = ensure(channel, buffer, 9);
+                    buffer.putInt(each.deviceId).put((byte) each.attribute.ordinal()).putInt(each.chunks.size());
+                    for (TelemetryChunk chunk : each.chunks) {
+                        buffer = ensure(channel, buffer, 24);
+                        buffer.putLong(chunk.firstTimestamp).putLong(chunk.lastTimestamp)
+                                .putInt(chunk.count).putInt(chunk.bits.bitLength);
+                        for (int i = 0, words = (chunk.bits.bitLength + 63) >>> 6; i < words; i++) {
+                            buffer = ensure(channel, buffer, 8);
+                            buffer.putLong(chunk.bits.words[i]);
+                        }
+                    }
+                }
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save telemetry to " + file, e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to replace " + file, e);
+        }
+    }
+
+    public static TelemetryStore load(Path file) {
+        TelemetryStore store = new TelemetryStore();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != FILE_MAGIC) {
+                throw new IllegalStateException("Not a telemetry file: " + file);
+            }
+            int seriesCount = buffer.getInt();
+            for (int s = 0; s < seriesCount; s++) {
+                int deviceId = buffer.getInt();
+                DeviceAttribute attribute = DeviceAttribute.values()[buffer.get()];
+                int chunkCount = buffer.getInt();
+                TelemetrySeries loaded = new TelemetrySeries(deviceId, attribute);
+                for (int c = 0; c < chunkCount; c++) {
+                    long first = buffer.getLong();
+                    long last = buffer.getLong();
+                    int count = buffer.getInt();
+                    int bitLength = buffer.getInt();
+                    long[] words = new long[Math.max(1, (bitLength + 63) >>> 6)];
+                    for (int i = 0, n = (bitLength + 63) >>> 6; i < n; i++) {
+                        words[i] = buffer.getLong();
+                    }
+                    TelemetryChunk chunk = new TelemetryChunk(first, last, count, new BitBuffer(words, bitLength));
+                    loaded.chunks.add(chunk);
+                    loaded.sampleCount += count;
+                    chunk.decode(Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> {
+                        for (TelemetryRollup rollup : loaded.rollups) {
+                            rollup.add(timestamp, value);
+                        }
+                    });
+                }
+                if (!loaded.chunks.isEmpty()) {
+                    loaded.chunks.get(loaded.chunks.size() - 1).reopen();
+                }
+                store.series.put(key(deviceId, attribute), loaded);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load telemetry from " + file, e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Truncated telemetry file: " + file, e);
+        }
+        return store;
+    }
+
+    private TelemetrySeries seriesFor(int deviceId, DeviceAttribute attribute, boolean create) {
+        long key = key(deviceId, attribute);
+        lock.readLock().lock();
+        try {
+            TelemetrySeries found = series.get(key);
+            if (found != null || !create) {
+                return found;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            return series.computeIfAbsent(key, k -> new TelemetrySeries(deviceId, attribute));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<TelemetrySeries> allSeries() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(series.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static long key(int deviceId, DeviceAttribute attribute) {
+        return ((long) deviceId << 8) | attribute.ordinal();
+    }
+}
+
+// Append-only log of every hub change since the last snapshot. Records are buffered and written
+// as one CRC-checked frame when the buffer fills or on flush(), so a crash loses at most what was
+// not yet flushed, and a frame torn by the crash is detected and dropped on replay. The header
+// names the snapshot generation the log continues from.
+class HubJournal {
+    private static final int MAGIC = 0x53484A31; // "SHJ1"
+    private static final int HEADER_BYTES = 12;
+    private static final int FRAME_HEADER_BYTES = 8;
+    private static final int BUFFER_BYTES = 256 * 1024;
+    // Records reach disk within this long even when the buffer never fills
+    static final long FLUSH_INTERVAL_MILLIS = 200;
+    // One thread flushes every open journal
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hub-journal-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final byte DEVICE_ADDED = 1;
+    private static final byte DEVICE_REMOVED = 2;
+    private static final byte STATE_CHANGED = 3;
+    private static final byte TAGGED = 4;
+    private static final byte UNTAGGED = 5;
+    private static final byte TRIGGER_ADDED = 6;
+    private static final byte TASK_ADDED = 7;
+    private static final byte TASK_REMOVED = 8;
+    private static final byte TASK_RESCHEDULED = 9;
+
+    private final Path file;
+    private final FileChannel channel;
+    // The first bytes are left free for the frame header
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    // Frames written since the last force
+    private boolean unsynced;
+    private boolean closed;
+    private final ScheduledFuture<?> periodicFlush;
+
+    // Continue after the last valid frame, as reported by replay, or start an empty journal for
+    // the generation when validLength is negative
+    HubJournal(Path file, long generation, long validLength) {
+        this.file = file;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open journal " + file, e);
+        }
+        if (validLength < 0) {
+            reset(generation);
+        } else {
+            try {
+                channel.truncate(validLength);
+                channel.position(validLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open journal " + file, e);
+            }
+            buffer.position(FRAME_HEADER_BYTES);
+        }
+        periodicFlush = FLUSHER.scheduleWithFixedDelay(this::flushIfNeeded, FLUSH_INTERVAL_MILLIS,
+                FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void deviceAdded(int kind, int id, int value) {
+        reserve(10);
+        buffer.put(DEVICE_ADDED).put((byte) kind).putInt(id).putInt(value);
+    }
+
+    synchronized void deviceRemoved(int id) {
+        reserve(5);
+        buffer.put(DEVICE_REMOVED).putInt(id);
+    }
+
+    synchronized void stateChanged(int id, DeviceAttribute attribute, int value) {
+        reserve(10);
+        buffer.put(STATE_CHANGED).putInt(id).put((byte) attribute.ordinal()).putInt(value);
+    }
+
+    synchronized void tagged(int id, String tag, boolean on) {
+        byte[] name = encode(tag);
+        reserve(7 + name.length);
+        buffer.put(on ? TAGGED : UNTAGGED).putInt(id);
+        putString(name);
+    }
+
+    synchronized void triggerAdded(String condition, String action) {
+        byte[] conditionBytes = encode(condition);
+        byte[] actionBytes = encode(action);
+        reserve(5 + conditionBytes.length + actionBytes.length);
+        buffer.put(TRIGGER_ADDED);
+        putString(conditionBytes);
+        putString(actionBytes);
+    }
+
+    synchronized void taskAdded(ScheduledTask task) {
+        byte[] time = encode(task.getTime());
+        byte[] command = encode(task.getCommand());
+        reserve(33 + time.length + command.length);
+        buffer.put(TASK_ADDED).putLong(task.getTaskId()).putInt(task.getDeviceId());
+        putString(time);
+        putString(command);
+        buffer.putLong(task.getDeadline()).putLong(task.getPeriodMillis());
+    }
+
+    synchronized void taskRemoved(long taskId) {
+        reserve(9);
+        buffer.put(TASK_REMOVED).putLong(taskId);
+    }
+
+    synchronized void taskRescheduled(long taskId, long deadline) {
+        reserve(17);
+        buffer.put(TASK_RESCHEDULED).putLong(taskId).putLong(deadline);
+    }
+
+    // Write out buffered records and force them to disk
+    synchronized void flush() {
+        writeFrame();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to sync journal " + file, e);
+        }
+        unsynced = false;
+    }
+
+    // Run by the flusher; an idle journal costs nothing
+    private synchronized void flushIfNeeded() {
+        if (closed || (!unsynced && buffer.position() == FRAME_HEADER_BYTES)) {
+            return;
+        }
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            System.out.println(e.getMessage() + ": " + e.getCause().getMessage());
+        }
+    }
+
+    // Drop everything, buffered or written, once a snapshot of the given generation holds it
+    synchronized void reset(long generation) {
+        buffer.clear();
+        buffer.putInt(MAGIC).putLong(generation).flip();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to reset journal " + file, e);
+        }
+        buffer.clear();
+        buffer.position(FRAME_HEADER_BYTES);
+        unsynced = false;
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        periodicFlush.cancel(false);
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close journal " + file, e);
+        }
+    }
+
+    private void reserve(int bytes) {
+        if (buffer.remaining() < bytes) {
+            writeFrame();
+        }
+    }
+
+    private void writeFrame() {
+        int length = buffer.position() - FRAME_HEADER_BYTES;
+        if (length == 0) {
+            return;
+        }
+        crc.reset();
+        crc.update(buffer.array(), FRAME_HEADER_BYTES, length);
+        buffer.putInt(0, length).putInt(4, (int) crc.getValue()).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            unsynced = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write journal " + file, e);
+        } finally {
+            buffer.clear();
+            buffer.position(FRAME_HEADER_BYTES);
+        }
+    }
+
+    private void putString(byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[] encode(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too long to journal: " + text.substring(0, 40) + "...");
+        }
+        return bytes;
+    }
+
+    // Apply the journal on top of the image and return the length of its valid prefix, or -1 if
+    // there is no journal for the image's generation. Replay stops at the first torn frame.
+    static long replay(Path file, HubImage image) {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC
+                    || buffer.getLong() != image.generation) {
+                // Left over from before the snapshot, which already contains it
+                return -1;
+            }
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= FRAME_HEADER_BYTES) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    buffer.position(start);
+                    break;
+                }
+                ByteBuffer frame = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(frame.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    buffer.position(start);
+                    break;
+                }
+                while (frame.hasRemaining()) {
+                    apply(frame, image);
+                }
+                buffer.position(buffer.position() + length);
+            }
+            return buffer.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to replay journal " + file, e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Corrupt journal record in " + file, e);
+        }
+    }
+
+    private static void apply(ByteBuffer frame, HubImage image) {
+        DeviceRegistry devices = image.devices;
+        byte type = frame.get();
+        switch (type) {
+            case DEVICE_ADDED -> {
+                int kind = frame.get();
+                int id = frame.getInt();
+                devices.restoreDevice(kind, id, frame.getInt(), 0);
+            }
+            case DEVICE_REMOVED -> devices.remove(frame.getInt());
+            case STATE_CHANGED -> {
+                int id = frame.getInt();
+                DeviceAttribute attribute = DeviceAttribute.values()[frame.get()];
+                int value = frame.getInt();
+                if (!devices.hasAttribute(id, attribute)) {
+                    return;
+                }
+                // Turning a door lock off locks it
+                switch (attribute) {
+                    case TEMPERATURE -> devices.setTemperature(id, value);
+                    case ON, LOCKED -> {
+                        if ((value != 0) == (attribute == DeviceAttribute.ON)) {
+                            devices.turnOn(id);
+                        } else {
+                            devices.turnOff(id);
+                        }
+                    }
+                }
+            }
+            case TAGGED, UNTAGGED -> {
+                int id = frame.getInt();
+                String tag = getString(frame);
+                if (!devices.contains(id)) {
+                    return;
+                }
+                if (type == TAGGED) {
+                    devices.tag(id, tag);
+                } else {
+                    devices.untag(id, tag);
+                }
+            }
+            case TRIGGER_ADDED -> {
+                String condition = getString(frame);
+                image.triggers.add(new Trigger(condition, getString(frame)));
+            }
+            case TASK_ADDED -> {
+                long taskId = frame.getLong();
+                int deviceId = frame.getInt();
+                String time = getString(frame);
+                String command = getString(frame);
+                long deadline = frame.getLong();
+                image.addTask(taskId, new ScheduledTask(deviceId, time, command, deadline, frame.getLong()));
+            }
+            case TASK_REMOVED -> image.tasks.remove(frame.getLong());
+            case TASK_RESCHEDULED -> {
+                ScheduledTask task = image.tasks.get(frame.getLong());
+                long deadline = frame.getLong();
+                if (task != null) {
+                    task.setDeadline(deadline);
+                }
+            }
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Hub state gathered while restoring: devices go straight into the registry, rules and tasks are
+// collected and handed to the hub at the end
+class HubImage {
+    final DeviceRegistry devices;
+    final List<Trigger> triggers = new ArrayList<>();
+    final Map<Long, ScheduledTask> tasks = new LinkedHashMap<>();
+    long nextTaskId = 1;
+    long generation;
+
+    HubImage(DeviceRegistry devices) {
+        this.devices = devices;
+    }
+
+    void addTask(long taskId, ScheduledTask task) {
+        task.setTaskId(taskId);
+        tasks.put(taskId, task);
+        nextTaskId = Math.max(nextTaskId, taskId + 1);
+    }
+}
+
+// Snapshot file of a whole hub: devices as fixed-size records after the tag names, then rules and
+// pending tasks, and a CRC of everything at the end. Loading maps the file and bulk-inserts rows.
+class HubStore {
+    static final String SNAPSHOT_FILE = "hub.snapshot";
+    static final String JOURNAL_FILE = "hub.journal";
+
+    private static final int SNAPSHOT_MAGIC = 0x53484831; // "SHH1"
+    private static final int DEVICE_BYTES = 17;
+
+    // Caller keeps the registry, rules and scheduler still; written to a temporary file and moved
+    // into place, so a crash mid-save leaves the previous snapshot intact
+    static void writeSnapshot(Path file, long generation, DeviceRegistry devices, List<Trigger> triggers,
+                              Collection<ScheduledTask> tasks, long nextTaskId) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            out.reserve(32).putInt(SNAPSHOT_MAGIC).putLong(generation).putLong(devices.version())
+                    .putLong(nextTaskId);
+            List<String> tags = devices.tagNames();
+            out.reserve(4).putInt(tags.size());
+            for (String tag : tags) {
+                out.putString(tag);
+            }
+            out.reserve(4).putInt(devices.size());
+            devices.forEachDevice((kind, id, value, tagBits) ->
+                    out.reserve(DEVICE_BYTES).put((byte) kind).putInt(id).putInt(value).putLong(tagBits));
+            out.reserve(4).putInt(triggers.size());
+            for (Trigger trigger : triggers) {
+                out.putString(trigger.getConditionText());
+                out.putString(trigger.getActionText());
+            }
+            out.reserve(4).putInt(tasks.size());
+            for (ScheduledTask task : tasks) {
+                out.reserve(12).putLong(task.getTaskId()).putInt(task.getDeviceId());
+                out.putString(task.getTime());
+                out.putString(task.getCommand());
+                out.reserve(16).putLong(task.getDeadline()).putLong(task.getPeriodMillis());
+            }
+            out.finish();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save hub to " + file, e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to replace " + file, e);
+        }
+    }
+
+    // Fill the image from the snapshot; false if there is none yet
+    static boolean readSnapshot(Path file, HubImage image) {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4 || size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Bad snapshot size " + size + ": " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, (int) size - 4));
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+                throw new IllegalStateException("Snapshot checksum mismatch: " + file);
+            }
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IllegalStateException("Not a hub snapshot: " + file);
+            }
+            image.generation = buffer.getLong();
+            image.devices.restoreVersion(buffer.getLong());
+            image.nextTaskId = buffer.getLong();
+            List<String> tags = new ArrayList<>();
+            for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                tags.add(HubJournal.getString(buffer));
+            }
+            image.devices.restoreTags(tags);
+            for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                int kind = buffer.get();
+                int id = buffer.getInt();
+                int value = buffer.getInt();
+                image.devices.restoreDevice(kind, id, value, buffer.getLong());
+            }
+            for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                String condition = HubJournal.getString(buffer);
+                image.triggers.add(new Trigger(condition, HubJournal.getString(buffer)));
+            }
+            for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                long taskId = buffer.getLong();
+                int deviceId = buffer.getInt();
+                String time = HubJournal.getString(buffer);
+                String command = HubJournal.getString(buffer);
+                long deadline = buffer.getLong();
+                image.addTask(taskId, new ScheduledTask(deviceId, time, command, deadline, buffer.getLong()));
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load hub from " + file, e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Truncated hub snapshot: " + file, e);
+        }
+    }
+
+    // Buffered channel writer that keeps a running CRC of everything written
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        private final CRC32 crc = new CRC32();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer reserve(int bytes) {
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+            return buffer;
+        }
+
+        void putString(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Too long to save: " + text.substring(0, 40) + "...");
+            }
+            reserve(2 + bytes.length).putShort((short) bytes.length).put(bytes);
+        }
+
+        // Append the CRC of everything before it
+        void finish() {
+            drain();
+            buffer.putInt((int) crc.getValue());
+            drain();
+        }
+
+        private void drain() {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write snapshot", e);
+            }
+            buffer.clear();
+        }
+    }
+}
+
+// Log-linear latency histogram in the style of HdrHistogram: values below 128 ns are exact and
+// larger ones fall into 64 buckets per power of two, so quantiles are within about 1.6%.
+// Recording is lock-free and allocation-free, so it is safe on device actors.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // Enough for every non-negative long
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    // Values recorded while the snapshot is taken may be partly counted
+    public LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new LatencySnapshot(copy, total, sum.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    // Largest value that lands in the bucket
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+// Point-in-time copy of a LatencyHistogram
+class LatencySnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencySnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanNanos() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMaxNanos() {
+        return max;
+    }
+
+    // Upper bound of the bucket holding the given percentile, e.g. 99.9
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count,
+                getMeanNanos() / 1000, getValueAtPercentile(50) / 1000.0, getValueAtPercentile(99) / 1000.0,
+                getValueAtPercentile(99.9) / 1000.0, max / 1000.0);
+    }
+}
+
+// Running totals for one rule, kept on the Trigger itself
+class RuleStats {
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos, boolean matched) {
+        evaluations.increment();
+        if (matched) {
+            matches.increment();
+        }
+        totalNanos.add(nanos);
+        long seen = maxNanos.get();
+        while (nanos > seen && !maxNanos.compareAndSet(seen, nanos)) {
+            seen = maxNanos.get();
+        }
+    }
+
+    RuleMetrics snapshot(String rule) {
+        return new RuleMetrics(rule, evaluations.sum(), matches.sum(), totalNanos.sum(), maxNanos.get());
+    }
+
+    void reset() {
+        evaluations.reset();
+        matches.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+}
+
+class RuleMetrics {
+    private final String rule;
+    private final long evaluations;
+    private final long matches;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    public RuleMetrics(String rule, long evaluations, long matches, long totalNanos, long maxNanos) {
+        this.rule = rule;
+        this.evaluations = evaluations;
+        this.matches = matches;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    // Evaluations whose condition held
+    public long getMatches() {
+        return matches;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public double getMeanNanos() {
+        return evaluations == 0 ? 0 : (double) totalNanos / evaluations;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d evaluations, %d matched, total %.3f ms, mean %.1fus, max %.1fus", rule,
+                evaluations, matches, totalNanos / 1e6, getMeanNanos() / 1000, maxNanos / 1000.0);
+    }
+}
+
+// JFR event for one rule evaluation; enable "smarthome.RuleEvaluation" in a recording, with a
+// threshold to capture only the slow ones
+@Name("smarthome.RuleEvaluation")
+@Label("Rule Evaluation")
+@Category("Smart Home")
+@Description("A trigger condition evaluated against the device registry")
+@StackTrace(false)
+class RuleEvaluationEvent extends Event {
+    @Label("Rule")
+    String rule;
+
+    @Label("Device")
+    @Description("Device whose change caused the evaluation, or Integer.MIN_VALUE for a full check")
+    int deviceId;
+
+    @Label("Matched")
+    boolean matched;
+}
+
+// Live hub instrumentation: latency histograms, command counts by device type, and the rules'
+// own RuleStats. Everything is cumulative until reset.
+class HubMetrics {
+    // executeAction on the device's actor, by command
+    final LatencyHistogram[] execution = newHistograms(TriggerAction.Command.values().length);
+    // From sending a command until it and every rule it set off are done, by command
+    final LatencyHistogram[] roundTrip = newHistograms(TriggerAction.Command.values().length);
+    final LatencyHistogram checkTriggers = new LatencyHistogram();
+    final LatencyHistogram ruleEvaluation = new LatencyHistogram();
+    final LatencyHistogram groupCommands = new LatencyHistogram();
+    private final Map<String, LongAdder> commandsByType = new ConcurrentHashMap<>();
+
+    void countCommand(String type) {
+        LongAdder counter = commandsByType.get(type);
+        if (counter == null) {
+            counter = commandsByType.computeIfAbsent(type, t -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    HubMetricsSnapshot snapshot(List<Trigger> triggers) {
+        Map<String, LatencySnapshot> latencies = new LinkedHashMap<>();
+        for (TriggerAction.Command command : TriggerAction.Command.values()) {
+            latencies.put("execute " + command, execution[command.ordinal()].snapshot());
+            latencies.put("round trip " + command, roundTrip[command.ordinal()].snapshot());
+        }
+        latencies.put("checkTriggers", checkTriggers.snapshot());
+        latencies.put("rule evaluation", ruleEvaluation.snapshot());
+        latencies.put("group command", groupCommands.snapshot());
+        Map<String, Long> commands = new TreeMap<>();
+        commandsByType.forEach((type, counter) -> commands.put(type, counter.sum()));
+        List<RuleMetrics> rules = new ArrayList<>();
+        for (Trigger trigger : triggers) {
+            rules.add(trigger.getStats().snapshot(trigger.toString()));
+        }
+        return new HubMetricsSnapshot(latencies, commands, rules);
+    }
+
+    void reset(List<Trigger> triggers) {
+        for (LatencyHistogram histogram : execution) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : roundTrip) {
+            histogram.reset();
+        }
+        checkTriggers.reset();
+        ruleEvaluation.reset();
+        groupCommands.reset();
+        commandsByType.values().forEach(LongAdder::reset);
+        for (Trigger trigger : triggers) {
+            trigger.getStats().reset();
+        }
+    }
+
+    private static LatencyHistogram[] newHistograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+}
+
+class HubMetricsSnapshot {
+    private final Map<String, LatencySnapshot> latencies;
+    private final Map<String, Long> commandsByType;
+    private final List<RuleMetrics> rules;
+
+    HubMetricsSnapshot(Map<String, LatencySnapshot> latencies, Map<String, Long> commandsByType,
+                       List<RuleMetrics> rules) {
+        this.latencies = Collections.unmodifiableMap(latencies);
+        this.commandsByType = Collections.unmodifiableMap(commandsByType);
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    // Keyed by what was timed, e.g. "execute TURN_ON" or "checkTriggers"
+    public Map<String, LatencySnapshot> getLatencies() {
+        return latencies;
+    }
+
+    // Commands carried out, by device type name, e.g. "Light"
+    public Map<String, Long> getCommandsByType() {
+        return commandsByType;
+    }
+
+    // In the order the rules were added
+    public List<RuleMetrics> getRules() {
+        return rules;
+    }
+
+    // The rules that took the most evaluation time in total
+    public List<RuleMetrics> slowestRules(int limit) {
+        List<RuleMetrics> sorted = new ArrayList<>(rules);
+        sorted.sort(Comparator.comparingLong(RuleMetrics::getTotalNanos).reversed());
+        return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        latencies.forEach((name, latency) -> {
+            if (latency.getCount() > 0) {
+                report.append(name).append(": ").append(latency).append('\n');
+            }
+        });
+        commandsByType.forEach((type, count) -> report.append(type).append(" commands: ").append(count).append('\n'));
+        for (RuleMetrics rule : slowestRules(5)) {
+            report.append(rule).append('\n');
+        }
+        return report.toString();
+    }
+}
+
+// SmartHomeHub acts as the observer subject and proxy controller.
+// Device commands run on per-device actors (see DeviceActors), so the hub may be driven from
+// many threads at once; the blocking methods wait until everything the command set off is done.
+class SmartHomeHub {
+    private final DeviceRegistry devices;
+    private final Clock clock;
+    private final TimingWheel scheduler;
+    private final DeviceActors actors;
+    // Both grow in place under the triggers lock; actors read them without locking
+    private final List<Trigger> triggers = new AppendOnlyList<>();
+    private final TriggerIndex triggerIndex = new TriggerIndex();
+    private final DeviceEventBus eventBus = new DeviceEventBus();
+    private final TelemetryStore telemetry = new TelemetryStore();
+    // Snapshot buffers are reused across reports, one per exporting thread
+    private final ThreadLocal<SnapshotWriter> snapshotWriters =
+            ThreadLocal.withInitial(() -> new SnapshotWriter(SNAPSHOT_BUFFER_BYTES));
+    // Pending tasks by id, for snapshots; guarded by the scheduler lock like the ids
+    private final Map<Long, ScheduledTask> pendingTasks = new HashMap<>();
+    private final HubMetrics metrics = new HubMetrics();
+    // Rule evaluations are reported to JFR whether or not this is set
+    private volatile boolean metricsEnabled = true;
+    private long nextTaskId = 1;
+    // Ticks the scheduler on a real clock, from the first scheduled task until the hub is shut
+    // down; a SimulatedClock is driven by calling runDueTasks instead. Guarded by the scheduler lock.
+    private ScheduledExecutorService schedulerDriver;
+    private boolean schedulerStopped;
+    // Set when the hub was opened on a store directory, see open()
+    private Path storeDirectory;
+    private long storeGeneration;
+    private volatile HubJournal journal;
+    // Saved state being replayed must not fire rules or record telemetry a second time
+    private volatile boolean restoring;
+
+    // The cascade the current thread is working for, and the rule actions it has set off so far
+    private static final ThreadLocal<CascadeTurn> CURRENT_TURN = new ThreadLocal<>();
+
+    // A single change may set off at most this many rule firings
+    private static final int MAX_CASCADE_FIRINGS = 10_000;
+    private static final long SCHEDULER_TICK_MILLIS = 100;
+    private static final int SNAPSHOT_BUFFER_BYTES = 64 * 1024;
+
+    public SmartHomeHub() {
+        this(Clock.systemDefaultZone());
+    }
+
+    // Scheduling reads time only from the given clock, so a simulated clock makes it deterministic
+    public SmartHomeHub(Clock clock) {
+        this(clock, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SmartHomeHub(Clock clock, int actorStripes) {
+        this.clock = clock;
+        this.scheduler = new TimingWheel(SCHEDULER_TICK_MILLIS, clock.millis());
+        this.devices = new DeviceRegistry(eventBus);
+        this.actors = new DeviceActors(actorStripes);
+        eventBus.subscribe(this::onStateChange);
+        eventBus.subscribe(this::recordTelemetry);
+    }
+
+    // Thermostat history, one sample per temperature change, stamped with the hub clock
+    public TelemetryStore getTelemetry() {
+        return telemetry;
+    }
+
+    private void recordTelemetry(DeviceStateChange change) {
+        if (change.getAttribute() != DeviceAttribute.TEMPERATURE || restoring) {
+            return;
+        }
+        try {
+            telemetry.record(change.getDeviceId(), change.getAttribute(), clock.millis(), change.getNewValue());
+        } catch (IllegalArgumentException e) {
+            // The clock stepped backwards; drop the sample rather than fail the device command
+        }
+    }
+
+    public void addDevice(SmartDevice device) {
+        devices.add(device);
+        System.out.println(device.getClass().getSimpleName() + " " + device.getId() + " added to the system.");
+    }
+
+    // Create a device of a factory type, e.g. "plug", and add it
+    public void addDevice(String type, int id) {
+        devices.add(SmartDeviceFactory.createDevice(type, id), type);
+        System.out.println(devices.typeName(id) + " " + id + " added to the system.");
+    }
+
+    // Bulk onboarding; see SmartDeviceFactory.loadManifest for the format
+    public int loadManifest(Path manifest) {
+        int added = SmartDeviceFactory.loadManifest(manifest, devices);
+        System.out.println(added + " devices added to the system from " + manifest.getFileName() + ".");
+        return added;
+    }
+
+    public void removeDevice(int id) {
+        devices.remove(id);
+        System.out.println("Device " + id + " removed from the system.");
+    }
+
+    // Listeners are called on the thread that made the change, usually a device actor
+    public DeviceEventBus getEventBus() {
+        return eventBus;
+    }
+
+    // Direct access for bulk loading without per-device objects
+    public DeviceRegistry getRegistry() {
+        return devices;
+    }
+
+    public SmartDevice getDevice(int id) {
+        return devices.get(id);
+    }
+
+    public void turnOn(int id) {
+        await(turnOnAsync(id));
+    }
+
+    public void turnOff(int id) {
+        await(turnOffAsync(id));
+    }
+
+    public void setTemperature(int id, int temperature) {
+        await(setTemperatureAsync(id, temperature));
+    }
+
+    // Ordered after every command already sent to the device
+    public int readAttribute(int id, DeviceAttribute attribute) {
+        return await(readAttributeAsync(id, attribute));
+    }
+
+    // The async variants complete once the command and every rule it set off have run
+    public CompletableFuture<Void> turnOnAsync(int id) {
+        return runCommand(TriggerAction.of(TriggerAction.Command.TURN_ON, id, 0));
+    }
+
+    public CompletableFuture<Void> turnOffAsync(int id) {
+        return runCommand(TriggerAction.of(TriggerAction.Command.TURN_OFF, id, 0));
+    }
+
+    public CompletableFuture<Void> setTemperatureAsync(int id, int temperature) {
+        return runCommand(TriggerAction.of(TriggerAction.Command.SET_TEMPERATURE, id, temperature));
+    }
+
+    public CompletableFuture<Integer> readAttributeAsync(int id, DeviceAttribute attribute) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        actors.execute(id, () -> {
+            try {
+                result.complete(devices.readAttribute(id, attribute));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // Stop the actor threads; commands already queued still run, and the periodic flush
+    // writes out what they journal until the hub is closed
+    public void shutdown() {
+        stopSchedulerDriver();
+        actors.shutdown();
+        HubJournal attached = journal;
+        if (attached != null) {
+            attached.flush();
+        }
+    }
+
+    // Open the hub kept in the directory: load its snapshot by mapping it, replay the journal of
+    // changes made since, and journal every change from here on. An empty directory gives an
+    // empty hub. Call checkpoint() now and then so the journal stays short.
+    public static SmartHomeHub open(Path directory, Clock clock) {
+        long start = System.nanoTime();
+        SmartHomeHub hub = new SmartHomeHub(clock);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create " + directory, e);
+        }
+        HubImage image = new HubImage(hub.devices);
+        hub.restoring = true;
+        long journalLength;
+        try {
+            HubStore.readSnapshot(directory.resolve(HubStore.SNAPSHOT_FILE), image);
+            journalLength = HubJournal.replay(directory.resolve(HubStore.JOURNAL_FILE), image);
+        } finally {
+            hub.restoring = false;
+        }
+        for (Trigger trigger : image.triggers) {
+            hub.installTrigger(trigger);
+        }
+        synchronized (hub.scheduler) {
+            for (ScheduledTask task : image.tasks.values()) {
+                hub.pendingTasks.put(task.getTaskId(), task);
+                hub.scheduler.schedule(task);
+            }
+            hub.nextTaskId = image.nextTaskId;
+            if (!image.tasks.isEmpty()) {
+                hub.startSchedulerDriver();
+            }
+        }
+        hub.storeDirectory = directory;
+        hub.storeGeneration = image.generation;
+        hub.journal = new HubJournal(directory.resolve(HubStore.JOURNAL_FILE), image.generation, journalLength);
+        hub.devices.setJournal(hub.journal);
+        System.out.println("Restored " + hub.devices.size() + " devices, " + image.triggers.size() + " triggers and "
+                + image.tasks.size() + " scheduled tasks in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        return hub;
+    }
+
+    // Write a snapshot of the whole hub and start an empty journal. Everything is held still
+    // while the snapshot is written; if the process dies before the journal is reset, the old
+    // journal is recognised by its generation and skipped.
+    public void checkpoint() {
+        HubJournal attached = requireJournal();
+        devices.exclusive(() -> {
+            synchronized (triggers) {
+                synchronized (scheduler) {
+                    long generation = storeGeneration + 1;
+                    HubStore.writeSnapshot(storeDirectory.resolve(HubStore.SNAPSHOT_FILE), generation, devices,
+                            triggers, pendingTasks.values(), nextTaskId);
+                    attached.reset(generation);
+                    storeGeneration = generation;
+                }
+            }
+        });
+    }
+
+    // Force journaled changes to disk; otherwise they are written when the buffer fills or,
+    // at the latest, every HubJournal.FLUSH_INTERVAL_MILLIS
+    public void flush() {
+        requireJournal().flush();
+    }
+
+    // Stop the actors and let queued commands finish, so their changes are journaled too, then
+    // flush and close the journal
+    public void close() {
+        if (DeviceActors.onActorThread()) {
+            throw new IllegalStateException("A hub cannot be closed from one of its own device commands");
+        }
+        stopSchedulerDriver();
+        actors.shutdown();
+        actors.awaitTermination();
+        HubJournal attached = journal;
+        if (attached != null) {
+            devices.setJournal(null);
+            journal = null;
+            attached.close();
+        }
+    }
+
+    private HubJournal requireJournal() {
+        HubJournal attached = journal;
+        if (attached == null) {
+            throw new IllegalStateException("Hub has no store; use SmartHomeHub.open");
+        }
+        return attached;
+    }
+
+    public void tagDevice(int id, String tag) {
+        if (devices.contains(id)) {
+            devices.tag(id, tag);
+        }
+    }
+
+    public GroupCommandResult turnOnGroup(DeviceGroup group) {
+        return applyToGroup(group, TriggerAction.Command.TURN_ON, 0);
+    }
+
+    public GroupCommandResult turnOffGroup(DeviceGroup group) {
+        return applyToGroup(group, TriggerAction.Command.TURN_OFF, 0);
+    }
+
+    public GroupCommandResult setTemperatureGroup(DeviceGroup group, int temperature) {
+        return applyToGroup(group, TriggerAction.Command.SET_TEMPERATURE, temperature);
+    }
+
+    // One summary line instead of one line per device. The registry applies the whole group
+    // under its write lock, so it is atomic with respect to single-device commands.
+    private GroupCommandResult applyToGroup(DeviceGroup group, TriggerAction.Command command, int value) {
+        Cascade cascade = new Cascade();
+        GroupCommandResult result = runInCascade(cascade, () -> devices.apply(group, command, value));
+        System.out.println("Group " + command + " on " + group + ": " + result);
+        if (metricsEnabled) {
+            metrics.groupCommands.record(result.getElapsedNanos());
+        }
+        await(cascade.release());
+        return result;
+    }
+
+    // Run once at the next occurrence of the given "HH:mm" time of day
+    public ScheduledTask scheduleTask(int deviceId, String time, String command) {
+        ScheduledTask task = new ScheduledTask(deviceId, time, command,
+                nextOccurrence(time), 0);
+        schedule(task);
+        System.out.println("Scheduled task added for Device " + deviceId + " at " + time + ": " + command);
+        return task;
+    }
+
+    // Run every day at the given "HH:mm" time; days are taken as exactly 24 hours
+    public ScheduledTask scheduleDaily(int deviceId, String time, String command) {
+        ScheduledTask task = new ScheduledTask(deviceId, time + " daily", command,
+                nextOccurrence(time), Duration.ofDays(1).toMillis());
+        schedule(task);
+        System.out.println("Scheduled task added for Device " + deviceId + " daily at " + time + ": " + command);
+        return task;
+    }
+
+    public ScheduledTask scheduleAfter(int deviceId, Duration delay, String command) {
+        long deadline = clock.millis() + delay.toMillis();
+        ScheduledTask task = new ScheduledTask(deviceId, Instant.ofEpochMilli(deadline).toString(), command,
+                deadline, 0);
+        schedule(task);
+        return task;
+    }
+
+    public ScheduledTask scheduleEvery(int deviceId, Duration initialDelay, Duration period, String command) {
+        if (period.toMillis() <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period);
+        }
+        long deadline = clock.millis() + initialDelay.toMillis();
+        ScheduledTask task = new ScheduledTask(deviceId, Instant.ofEpochMilli(deadline) + " then every " + period,
+                command, deadline, period.toMillis());
+        schedule(task);
+        return task;
+    }
+
+    private void schedule(ScheduledTask task) {
+        synchronized (scheduler) {
+            task.setTaskId(nextTaskId++);
+            pendingTasks.put(task.getTaskId(), task);
+            scheduler.schedule(task);
+            HubJournal attached = journal;
+            if (attached != null) {
+                attached.taskAdded(task);
+            }
+            startSchedulerDriver();
+        }
+    }
+
+    // Caller holds the scheduler lock
+    private void startSchedulerDriver() {
+        if (schedulerDriver != null || schedulerStopped || clock instanceof SimulatedClock) {
+            return;
+        }
+        schedulerDriver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hub-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedulerDriver.scheduleWithFixedDelay(this::tick, SCHEDULER_TICK_MILLIS, SCHEDULER_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // An exception would cancel the periodic tick, and with it every later task
+    private void tick() {
+        try {
+            runDueTasks();
+        } catch (RuntimeException e) {
+            System.out.println("Scheduled task failed: " + e.getMessage());
+        }
+    }
+
+    // Lets a tick under way finish, so its commands reach the actors before they stop
+    private void stopSchedulerDriver() {
+        ScheduledExecutorService driver;
+        synchronized (scheduler) {
+            schedulerStopped = true;
+            driver = schedulerDriver;
+            schedulerDriver = null;
+        }
+        if (driver == null) {
+            return;
+        }
+        driver.shutdown();
+        try {
+            while (!driver.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Still waiting for scheduled tasks to finish...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean cancelTask(ScheduledTask task) {
+        synchronized (scheduler) {
+            boolean cancelled = scheduler.cancel(task);
+            forgetTask(task);
+            return cancelled;
+        }
+    }
+
+    // Caller holds the scheduler lock
+    private void forgetTask(ScheduledTask task) {
+        HubJournal attached = journal;
+        if (pendingTasks.remove(task.getTaskId()) != null && attached != null) {
+            attached.taskRemoved(task.getTaskId());
+        }
+    }
+
+    public int pendingTaskCount() {
+        synchronized (scheduler) {
+            return scheduler.size();
+        }
+    }
+
+    // Run every task that has come due by the clock's current time; returns how many ran.
+    // Tasks for different devices run in parallel. Hubs on a real clock do this every tick by
+    // themselves; with a SimulatedClock it is up to the caller.
+    public int runDueTasks() {
+        List<ScheduledTask> due;
+        synchronized (scheduler) {
+            due = scheduler.advanceTo(clock.millis());
+        }
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (ScheduledTask task : due) {
+            // An earlier task in this batch may have cancelled it
+            if (task.isCancelled()) {
+                continue;
+            }
+            System.out.println("Running scheduled task: " + task);
+            running.add(runCommand(task.getAction()));
+            synchronized (scheduler) {
+                if (task.isRecurring() && !task.isCancelled()) {
+                    task.reschedule();
+                    scheduler.schedule(task);
+                    HubJournal attached = journal;
+                    if (attached != null) {
+                        attached.taskRescheduled(task.getTaskId(), task.getDeadline());
+                    }
+                } else if (!task.isRecurring()) {
+                    forgetTask(task);
+                }
+            }
+        }
+        await(CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])));
+        return due.size();
+    }
+
+    private long nextOccurrence(String time) {
+        LocalTime at;
+        try {
+            at = LocalTime.parse(time);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid time of day: " + time, e);
+        }
+        ZonedDateTime now = ZonedDateTime.now(clock);
+        ZonedDateTime next = now.with(at);
+        if (!next.isAfter(now)) {
+            next = next.plusDays(1);
+        }
+        return next.toInstant().toEpochMilli();
+    }
+
+    // Rules are compiled once here; a malformed rule is rejected immediately
+    public void addTrigger(String condition, String action) {
+        installTrigger(new Trigger(condition, action));
+        System.out.println("Added trigger: When " + condition + " then " + action);
+    }
+
+    private void installTrigger(Trigger trigger) {
+        synchronized (triggers) {
+            triggers.add(trigger);
+            triggerIndex.add(trigger);
+            HubJournal attached = journal;
+            if (attached != null) {
+                attached.triggerAdded(trigger.getConditionText(), trigger.getActionText());
+            }
+        }
+    }
+
+    // Evaluate every rule
+    public void checkTriggers() {
+        long start = System.nanoTime();
+        Cascade cascade = new Cascade();
+        runInCascade(cascade, () -> {
+            for (Trigger trigger : triggers) {
+                if (evaluate(trigger, Condition.NO_FOCUS, null)) {
+                    CURRENT_TURN.get().followUps.add(new Firing(trigger, Condition.NO_FOCUS, null, 0, null));
+                }
+            }
+            return null;
+        });
+        await(cascade.release());
+        recordLatency(metrics.checkTriggers, start);
+    }
+
+    // Evaluate only the rules that read the given device's state
+    public void checkTriggers(int deviceId) {
+        SmartDevice device = devices.get(deviceId);
+        if (device == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        Cascade cascade = new Cascade();
+        runInCascade(cascade, () -> {
+            for (Trigger trigger : triggerIndex.candidates(device)) {
+                if (evaluate(trigger, deviceId, null)) {
+                    CURRENT_TURN.get().followUps.add(new Firing(trigger, deviceId, null, 0, null));
+                }
+            }
+            return null;
+        });
+        await(cascade.release());
+        recordLatency(metrics.checkTriggers, start);
+    }
+
+    // Every rule evaluation goes through here, to be timed, counted and offered to JFR
+    private boolean evaluate(Trigger trigger, int focus, DeviceAttribute changed) {
+        RuleEvaluationEvent event = new RuleEvaluationEvent();
+        event.begin();
+        boolean timed = metricsEnabled;
+        long start = timed ? System.nanoTime() : 0;
+        boolean matched = trigger.evaluate(devices, focus, changed);
+        if (timed) {
+            long elapsed = System.nanoTime() - start;
+            trigger.getStats().record(elapsed, matched);
+            metrics.ruleEvaluation.record(elapsed);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.rule = trigger.toString();
+            event.deviceId = focus;
+            event.matched = matched;
+            event.commit();
+        }
+        return matched;
+    }
+
+    private void recordLatency(LatencyHistogram histogram, long start) {
+        if (metricsEnabled) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    public HubMetricsSnapshot metrics() {
+        return metrics.snapshot(triggers);
+    }
+
+    public void resetMetrics() {
+        metrics.reset(triggers);
+    }
+
+    // Timing costs a couple of clock reads per command and rule evaluation
+    public void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+    }
+
+    // Runs on whichever thread made the change. Rule actions are collected on the current turn and
+    // sent to their devices' actors once the change's own command has finished, so output and
+    // ordering follow cause and effect. Changes made outside any cascade, e.g. through a device
+    // handle, start a new one.
+    private void onStateChange(DeviceStateChange change) {
+        if (restoring) {
+            return;
+        }
+        CascadeTurn turn = CURRENT_TURN.get();
+        Cascade cascade = turn != null ? turn.cascade : new Cascade();
+        if (cascade.isStopped()) {
+            return;
+        }
+        for (Trigger trigger : triggerIndex.candidates(change.getDeviceId(), change.getAttribute())) {
+            if (!evaluate(trigger, change.getDeviceId(), change.getAttribute())) {
+                continue;
+            }
+            Firing firing = new Firing(trigger, change.getDeviceId(), change.getAttribute(), change.getNewValue(),
+                    turn != null ? turn.cause : null);
+            // The same rule firing on the same state further up its own chain means rules are
+            // feeding each other; rules merely firing more than once in a cascade are fine
+            if (firing.repeatsCause()) {
+                cascade.stop();
+                System.out.println("Trigger cycle detected, stopping: " + firing.describeChain());
+                break;
+            }
+            if (!cascade.recordFiring(MAX_CASCADE_FIRINGS)) {
+                System.out.println("Trigger cascade passed " + MAX_CASCADE_FIRINGS + " rule firings, stopping: "
+                        + firing.describeChain());
+                break;
+            }
+            if (turn != null) {
+                turn.followUps.add(firing);
+            } else {
+                submit(trigger.getAction(), firing, cascade);
+            }
+        }
+        if (turn == null) {
+            cascade.release();
+        }
+    }
+
+    // Run on the calling thread as part of the cascade, then send whatever rules it set off
+    private <T> T runInCascade(Cascade cascade, Supplier<T> body) {
+        return runInCascade(cascade, null, body);
+    }
+
+    // The cause is the rule firing this work carries out, or null for an outside command
+    private <T> T runInCascade(Cascade cascade, Firing cause, Supplier<T> body) {
+        CascadeTurn turn = new CascadeTurn(cascade, cause);
+        CascadeTurn outer = CURRENT_TURN.get();
+        CURRENT_TURN.set(turn);
+        try {
+            return body.get();
+        } finally {
+            CURRENT_TURN.set(outer);
+            for (Firing followUp : turn.followUps) {
+                submit(followUp.trigger.getAction(), followUp, cascade);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> runCommand(TriggerAction action) {
+        Cascade cascade = new Cascade();
+        submit(action, null, cascade);
+        CompletableFuture<Void> done = cascade.release();
+        if (metricsEnabled) {
+            long start = System.nanoTime();
+            LatencyHistogram histogram = metrics.roundTrip[action.getCommand().ordinal()];
+            done.whenComplete((ignored, failure) -> histogram.record(System.nanoTime() - start));
+        }
+        return done;
+    }
+
+    // Queue the action on its device's actor as part of the cascade
+    private void submit(TriggerAction action, Firing cause, Cascade cascade) {
+        cascade.begin();
+        actors.execute(action.getDeviceId(), () -> {
+            try {
+                runInCascade(cascade, cause, () -> {
+                    executeAction(action);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                cascade.fail(e);
+            } finally {
+                cascade.end();
+            }
+        });
+    }
+
+    // Runs on the device's actor
+    private void executeAction(TriggerAction action) {
+        long start = System.nanoTime();
+        int id = action.getDeviceId();
+        String type = null;
+        switch (action.getCommand()) {
+            case TURN_ON -> {
+                type = devices.typeName(id);
+                if (type != null) {
+                    devices.turnOn(id);
+                    System.out.println(type + " " + id + " turned On.");
+                }
+            }
+            case TURN_OFF -> {
+                type = devices.typeName(id);
+                if (type != null) {
+                    devices.turnOff(id);
+                    System.out.println(type + " " + id + " turned Off.");
+                }
+            }
+            case SET_TEMPERATURE -> {
+                if (devices.setTemperature(id, action.getValue())) {
+                    type = "Thermostat";
+                    System.out.println("Thermostat " + id + " set to " + action.getValue() + " degrees.");
+                }
+            }
+        }
+        if (metricsEnabled) {
+            metrics.execution[action.getCommand().ordinal()].record(System.nanoTime() - start);
+            if (type != null) {
+                metrics.countCommand(type);
+            }
+        }
+    }
+
+    // Blocking on an actor thread could wait on its own mailbox forever
+    private static <T> T await(CompletableFuture<T> future) {
+        if (DeviceActors.onActorThread()) {
+            throw new IllegalStateException("Blocking hub call from a device actor; use the async variant");
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void statusReport() {
+        exportStatus(Channels.newChannel(System.out), SnapshotFormat.TEXT);
+        System.out.flush();
+    }
+
+    // Full snapshot of every device; returns the version to pass to exportChanges next time
+    public long exportStatus(WritableByteChannel out, SnapshotFormat format) {
+        return exportChanges(out, format, 0);
+    }
+
+    // Only devices changed or removed after sinceVersion; falls back to a full snapshot (flagged
+    // in the header) if removals that old are no longer known
+    public long exportChanges(WritableByteChannel out, SnapshotFormat format, long sinceVersion) {
+        return devices.writeSnapshot(snapshotWriters.get(), out, format, sinceVersion);
+    }
+
+    public long exportStatus(Path file, SnapshotFormat format) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return exportStatus(channel, format);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to export status to " + file, e);
+        }
+    }
+}
+
+// Per-device actors on a striped executor: every command for a device runs on the same
+// single-threaded stripe, one at a time and in submission order, which makes each device
+// linearizable without a lock per device. Different stripes run in parallel.
+class DeviceActors {
+    private static final ThreadLocal<Boolean> ACTOR_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private final ExecutorService[] stripes;
+
+    public DeviceActors(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        stripes = new ExecutorService[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            String name = "device-actor-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(() -> {
+                    ACTOR_THREAD.set(true);
+                    task.run();
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void execute(int deviceId, Runnable command) {
+        int hash = deviceId * 0x9E3779B9;
+        stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)].execute(command);
+    }
+
+    public static boolean onActorThread() {
+        return ACTOR_THREAD.get();
+    }
+
+    public void shutdown() {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    // Wait for the commands queued before shutdown to finish
+    public void awaitTermination() {
+        try {
+            for (ExecutorService stripe : stripes) {
+                while (!stripe.awaitTermination(1, TimeUnit.MINUTES)) {
+                    System.out.println("Still waiting for device commands to finish...");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Everything set off by one outside command: the device commands still in flight and how many
+// rules have fired. The creator holds one reference until release(), so the cascade cannot
+// finish before its first command is even queued.
+class Cascade {
+    private final AtomicInteger inFlight = new AtomicInteger(1);
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final AtomicInteger firings = new AtomicInteger();
+    private volatile boolean stopped;
+    private volatile RuntimeException failure;
+
+    void begin() {
+        inFlight.incrementAndGet();
+    }
+
+    void end() {
+        if (inFlight.decrementAndGet() == 0) {
+            if (failure != null) {
+                done.completeExceptionally(failure);
+            } else {
+                done.complete(null);
+            }
+        }
+    }
+
+    // Drop the creator's reference; the future completes once every command has run
+    CompletableFuture<Void> release() {
+        end();
+        return done;
+    }
+
+    void fail(RuntimeException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    // False, and the cascade stops, once it has run more than the given number of rules
+    boolean recordFiring(int limit) {
+        if (firings.incrementAndGet() > limit) {
+            stopped = true;
+            return false;
+        }
+        return true;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+}
+
+// A rule firing and the state change that set it off; causes lead back to the outside command
+class Firing {
+    final Trigger trigger;
+    final int deviceId;
+    // Null when the rule was checked outright rather than set off by a change
+    final DeviceAttribute attribute;
+    final int value;
+    final Firing cause;
+
+    Firing(Trigger trigger, int deviceId, DeviceAttribute attribute, int value, Firing cause) {
+        this.trigger = trigger;
+        this.deviceId = deviceId;
+        this.attribute = attribute;
+        this.value = value;
+        this.cause = cause;
+    }
+
+    // True if an earlier firing in this chain was the same rule on the same device state
+    boolean repeatsCause() {
+        for (Firing earlier = cause; earlier != null; earlier = earlier.cause) {
+            if (earlier.trigger == trigger && earlier.deviceId == deviceId
+                    && earlier.attribute == attribute && earlier.value == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Outside command first
+    String describeChain() {
+        Deque<Firing> chain = new ArrayDeque<>();
+        for (Firing firing = this; firing != null; firing = firing.cause) {
+            chain.push(firing);
+        }
+        StringBuilder out = new StringBuilder();
+        for (Firing firing : chain) {
+            if (out.length() > 0) {
+                out.append(" -> ");
+            }
+            out.append('[').append(firing.trigger).append(']');
+        }
+        return out.toString();
+    }
+}
+
+// One piece of work done for a cascade on one thread
+class CascadeTurn {
+    final Cascade cascade;
+    // The rule firing this turn carries out, or null for an outside command
+    final Firing cause;
+    final List<Firing> followUps = new ArrayList<>();
+
+    CascadeTurn(Cascade cascade, Firing cause) {
+        this.cascade = cascade;
+        this.cause = cause;
+    }
+}
+
+// ScheduledTask to store scheduling commands; also its own node in the timing wheel bucket list
+class ScheduledTask {
+    private int deviceId;
+    private String time;
+    private String command;
+    private final TriggerAction action;
+    private long deadline;
+    private final long periodMillis;
+    private boolean cancelled;
+    // Assigned by the hub so the journal can refer to the task
+    private long taskId;
+
+    // Intrusive list links, owned by TimingWheel
+    TimerBucket bucket;
+    ScheduledTask prev;
+    ScheduledTask next;
+
+    public ScheduledTask(int deviceId, String time, String command, long deadline, long periodMillis) {
+        this.deviceId = deviceId;
+        this.time = time;
+        this.command = command;
+        this.action = parseCommand(deviceId, command);
+        this.deadline = deadline;
+        this.periodMillis = periodMillis;
+    }
+
+    // List sentinel for TimerBucket
+    ScheduledTask() {
+        this.action = null;
+        this.periodMillis = 0;
+    }
+
+    // "Turn On", "Turn Off", "Set Temperature 72", or any trigger action such as "turnOff(1)"
+    private static TriggerAction parseCommand(int deviceId, String command) {
+        String trimmed = command.trim();
+        if (trimmed.equalsIgnoreCase("Turn On")) {
+            return TriggerAction.of(TriggerAction.Command.TURN_ON, deviceId, 0);
+        }
+        if (trimmed.equalsIgnoreCase("Turn Off")) {
+            return TriggerAction.of(TriggerAction.Command.TURN_OFF, deviceId, 0);
+        }
+        String setTemperature = "Set Temperature ";
+        if (trimmed.regionMatches(true, 0, setTemperature, 0, setTemperature.length())) {
+            try {
+                int value = Integer.parseInt(trimmed.substring(setTemperature.length()).trim());
+                return TriggerAction.of(TriggerAction.Command.SET_TEMPERATURE, deviceId, value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid command: " + command, e);
+            }
+        }
+        return TriggerAction.parse(command);
+    }
+
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    public long getTaskId() {
+        return taskId;
+    }
+
+    void setTaskId(long taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public TriggerAction getAction() {
+        return action;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    // Only while the task is not in a wheel, e.g. when restoring it
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public boolean isRecurring() {
+        return periodMillis > 0;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    void reschedule() {
+        deadline += periodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Device " + deviceId + " at " + time + ": " + command;
+    }
+}
+
+// Sentinel-headed doubly linked list of tasks sharing one wheel slot
+class TimerBucket {
+    private final ScheduledTask head = new ScheduledTask();
+    final int level;
+
+    TimerBucket(int level) {
+        this.level = level;
+        head.prev = head;
+        head.next = head;
+    }
+
+    void add(ScheduledTask task) {
+        task.bucket = this;
+        task.prev = head.prev;
+        task.next = head;
+        head.prev.next = task;
+        head.prev = task;
+    }
+
+    static void unlink(ScheduledTask task) {
+        task.prev.next = task.next;
+        task.next.prev = task.prev;
+        task.prev = null;
+        task.next = null;
+        task.bucket = null;
+    }
+
+    boolean isEmpty() {
+        return head.next == head;
+    }
+
+    // Detach every task, in insertion order; returns how many there were
+    int drainTo(Consumer<ScheduledTask> sink) {
+        ScheduledTask task = head.next;
+        head.prev = head;
+        head.next = head;
+        int drained = 0;
+        while (task != head) {
+            drained++;
+            ScheduledTask following = task.next;
+            task.prev = null;
+            task.next = null;
+            task.bucket = null;
+            sink.accept(task);
+            task = following;
+        }
+        return drained;
+    }
+}
+
+// Hierarchical timing wheel: four levels of 256 slots, O(1) schedule and cancel.
+// A task sits on the lowest level whose current rotation contains its deadline and
+// drops a level each time the level above turns over, until it fires from level 0.
+class TimingWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final TimerBucket[][] wheels = new TimerBucket[LEVELS][SLOTS];
+    // Deadlines past the top level's range wait here until the top level turns over
+    private final TimerBucket overflow = new TimerBucket(LEVELS);
+    // Tasks per level, overflow last; lets idle stretches be skipped a rotation at a time
+    private final int[] levelCounts = new int[LEVELS + 1];
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheels[level][i] = new TimerBucket(level);
+            }
+        }
+    }
+
+    public void schedule(ScheduledTask task) {
+        if (task.bucket != null) {
+            throw new IllegalStateException("Task already scheduled: " + task);
+        }
+        place(task);
+        size++;
+    }
+
+    public boolean cancel(ScheduledTask task) {
+        task.cancel();
+        if (task.bucket == null) {
+            return false;
+        }
+        levelCounts[task.bucket.level]--;
+        TimerBucket.unlink(task);
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Move time forward and return the tasks that came due, in deadline order per tick
+    public List<ScheduledTask> advanceTo(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        List<ScheduledTask> due = new ArrayList<>();
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                currentTick = targetTick;
+                break;
+            }
+            // With every level below empty, nothing can fire before the lowest occupied level turns over
+            int lowest = 0;
+            while (levelCounts[lowest] == 0) {
+                lowest++;
+            }
+            long next = lowest == 0
+                    ? currentTick + 1
+                    : ((currentTick >>> (SLOT_BITS * lowest)) + 1) << (SLOT_BITS * lowest);
+            if (next > targetTick) {
+                currentTick = targetTick;
+                break;
+            }
+            currentTick = next;
+            cascade(1);
+            int fired = wheels[0][(int) (currentTick & SLOT_MASK)].drainTo(due::add);
+            levelCounts[0] -= fired;
+            size -= fired;
+        }
+        return due;
+    }
+
+    // When a level's slot index wraps to zero, pull the next slot of the level above down
+    private void cascade(int level) {
+        if ((currentTick >>> (SLOT_BITS * (level - 1)) & SLOT_MASK) != 0) {
+            return;
+        }
+        // Tasks may be re-placed into the bucket's own level, so count the drain before subtracting
+        if (level == LEVELS) {
+            int drained = overflow.drainTo(this::replace);
+            levelCounts[LEVELS] -= drained;
+            return;
+        }
+        cascade(level + 1);
+        int slot = (int) (currentTick >>> (SLOT_BITS * level) & SLOT_MASK);
+        int drained = wheels[level][slot].drainTo(this::replace);
+        levelCounts[level] -= drained;
+    }
+
+    // Newly scheduled: anything already due goes into the next level-0 slot
+    private void place(ScheduledTask task) {
+        place(task, currentTick + 1);
+    }
+
+    // Cascaded: the current level-0 slot has not been drained yet, so a task due now still fires this tick
+    private void replace(ScheduledTask task) {
+        place(task, currentTick);
+    }
+
+    private void place(ScheduledTask task, long earliestTick) {
+        long tick = Math.max(ceilDiv(task.getDeadline(), tickMillis), earliestTick);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if (tick >>> shift == currentTick >>> shift) {
+                wheels[level][(int) (tick >>> (SLOT_BITS * level) & SLOT_MASK)].add(task);
+                levelCounts[level]++;
+                return;
+            }
+        }
+        overflow.add(task);
+        levelCounts[LEVELS]++;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -Math.floorDiv(-x, y);
+    }
+}
+
+// Clock that only moves when told to, for driving the scheduler in simulations
+class SimulatedClock extends Clock {
+    private Instant now;
+    private final ZoneId zone;
+
+    public SimulatedClock(Instant start, ZoneId zone) {
+        this.now = start;
+        this.zone = zone;
+    }
+
+    public void advance(Duration duration) {
+        now = now.plus(duration);
+    }
+
+    @Override
+    public Instant instant() {
+        return now;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return new SimulatedClock(now, zone);
+    }
+}
+
+// Compiled condition tree. "focus" is the device whose change is being reacted to and "changed"
+// the attribute that moved, or null for any attribute the device has. An unqualified comparison
+// on that attribute refers to the focus device; on any other attribute it still matches any device.
+interface Condition {
+    int NO_FOCUS = Integer.MIN_VALUE;
+
+    boolean test(DeviceRegistry devices, int focus, DeviceAttribute changed);
+
+    // Report the (device, attribute) pairs this condition reads; device -1 means any device
+    void collectDependencies(BiConsumer<Integer, DeviceAttribute> sink);
+}
+
+// Leaf condition such as "device2.temperature > 75" or "temperature > 75"
+class Comparison implements Condition {
+    static final int ANY_DEVICE = -1;
+
+    enum Operator {
+        GT(">"), GE(">="), LT("<"), LE("<="), EQ("=="), NE("!=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Operator fromSymbol(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operator: " + symbol);
+        }
+
+        boolean apply(int left, int right) {
+            return switch (this) {
+                case GT -> left > right;
+                case GE -> left >= right;
+                case LT -> left < right;
+                case LE -> left <= right;
+                case EQ -> left == right;
+                case NE -> left != right;
+            };
+        }
+    }
+
+    private final int deviceId;
+    private final DeviceAttribute attribute;
+    private final Operator operator;
+    private final int value;
+
+    Comparison(int deviceId, DeviceAttribute attribute, Operator operator, int value) {
+        this.deviceId = deviceId;
+        this.attribute = attribute;
+        this.operator = operator;
+        this.value = value;
+    }
+
+    @Override
+    public boolean test(DeviceRegistry devices, int focus, DeviceAttribute changed) {
+        if (deviceId != ANY_DEVICE) {
+            return matches(devices, deviceId);
+        }
+        if (focus != NO_FOCUS && (changed == null ? devices.hasAttribute(focus, attribute) : changed == attribute)) {
+            return matches(devices, focus);
+        }
+        return devices.anyMatch(attribute, current -> operator.apply(current, value));
+    }
+
+    private boolean matches(DeviceRegistry devices, int id) {
+        return devices.hasAttribute(id, attribute)
+                && operator.apply(devices.readAttribute(id, attribute), value);
+    }
+
+    @Override
+    public void collectDependencies(BiConsumer<Integer, DeviceAttribute> sink) {
+        sink.accept(deviceId, attribute);
+    }
+}
+
+// "and" / "or" node
+class Junction implements Condition {
+    private final boolean all;
+    private final Condition left;
+    private final Condition right;
+
+    Junction(boolean all, Condition left, Condition right) {
+        this.all = all;
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    public boolean test(DeviceRegistry devices, int focus, DeviceAttribute changed) {
+        boolean first = left.test(devices, focus, changed);
+        if (first != all) {
+            return first; // Short-circuit: false for "and", true for "or"
+        }
+        return right.test(devices, focus, changed);
+    }
+
+    @Override
+    public void collectDependencies(BiConsumer<Integer, DeviceAttribute> sink) {
+        left.collectDependencies(sink);
+        right.collectDependencies(sink);
+    }
+}
+
+class Negation implements Condition {
+    private final Condition inner;
+
+    Negation(Condition inner) {
+        this.inner = inner;
+    }
+
+    @Override
+    public boolean test(DeviceRegistry devices, int focus, DeviceAttribute changed) {
+        return !inner.test(devices, focus, changed);
+    }
+
+    @Override
+    public void collectDependencies(BiConsumer<Integer, DeviceAttribute> sink) {
+        inner.collectDependencies(sink);
+    }
+}
+
+// Recursive-descent parser for trigger conditions:
+//   expr       := term ("or" term)*
+//   term       := factor ("and" factor)*
+//   factor     := "not" factor | "(" expr ")" | comparison
+//   comparison := ["device" ID "."] attribute op (number | "true" | "false")
+class ConditionParser {
+    private static final Pattern TOKEN = Pattern.compile("\\s*(>=|<=|==|!=|[<>().]|[A-Za-z_]+|-?\\d+)");
+
+    private final String source;
+    private final List<String> tokens = new ArrayList<>();
+    private int position;
+
+    private ConditionParser(String source) {
+        this.source = source;
+        Matcher matcher = TOKEN.matcher(source);
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            tokens.add(matcher.group(1));
+            end = matcher.end();
+        }
+        if (!source.substring(end).isBlank()) {
+            throw new IllegalArgumentException("Unexpected input in condition \"" + source + "\" at " + end);
+        }
+    }
+
+    public static Condition parse(String source) {
+        ConditionParser parser = new ConditionParser(source);
+        Condition condition = parser.expression();
+        if (parser.position != parser.tokens.size()) {
+            throw parser.error("unexpected \"" + parser.tokens.get(parser.position) + "\"");
+        }
+        return condition;
+    }
+
+    private Condition expression() {
+        Condition condition = term();
+        while (accept("or")) {
+            condition = new Junction(false, condition, term());
+        }
+        return condition;
+    }
+
+    private Condition term() {
+        Condition condition = factor();
+        while (accept("and")) {
+            condition = new Junction(true, condition, factor());
+        }
+        return condition;
+    }
+
+    private Condition factor() {
+        if (accept("not")) {
+            return new Negation(factor());
+        }
+        if (accept("(")) {
+            Condition inner = expression();
+            expect(")");
+            return inner;
+        }
+        return comparison();
+    }
+
+    private Condition comparison() {
+        int deviceId = Comparison.ANY_DEVICE;
+        String word = next();
+        if (word.equals("device")) { // "device2.temperature" tokenises as device, 2, ., temperature
+            try {
+                deviceId = Integer.parseInt(next());
+            } catch (NumberFormatException e) {
+                throw error("expected a device id after \"device\"");
+            }
+            expect(".");
+            word = next();
+        }
+        DeviceAttribute attribute;
+        try {
+            attribute = DeviceAttribute.fromKeyword(word);
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+        Comparison.Operator operator = Comparison.Operator.fromSymbol(next());
+        String literal = next();
+        int value = switch (literal) {
+            case "true" -> 1;
+            case "false" -> 0;
+            default -> {
+                try {
+                    yield Integer.parseInt(literal);
+                } catch (NumberFormatException e) {
+                    throw error("expected a number but found \"" + literal + "\"");
+                }
+            }
+        };
+        return new Comparison(deviceId, attribute, operator, value);
+    }
+
+    private boolean accept(String token) {
+        if (position < tokens.size() && tokens.get(position).equals(token)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw error("expected \"" + token + "\"");
+        }
+    }
+
+    private String next() {
+        if (position >= tokens.size()) {
+            throw error("unexpected end");
+        }
+        return tokens.get(position++);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid condition \"" + source + "\": " + message);
+    }
+}
+
+// Parsed trigger action such as "turnOff(1)" or "setTemperature(2, 70)"
+class TriggerAction {
+    enum Command { TURN_ON, TURN_OFF, SET_TEMPERATURE }
+
+    private static final Pattern ACTION =
+            Pattern.compile("\\s*(turnOn|turnOff|setTemperature)\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(-?\\d+)\\s*)?\\)\\s*");
+
+    private final Command command;
+    private final int deviceId;
+    private final int value;
+
+    private TriggerAction(Command command, int deviceId, int value) {
+        this.command = command;
+        this.deviceId = deviceId;
+        this.value = value;
+    }
+
+    public static TriggerAction of(Command command, int deviceId, int value) {
+        return new TriggerAction(command, deviceId, value);
+    }
+
+    public static TriggerAction parse(String action) {
+        Matcher matcher = ACTION.matcher(action);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid action: " + action);
+        }
+        Command command = switch (matcher.group(1)) {
+            case "turnOn" -> Command.TURN_ON;
+            case "turnOff" -> Command.TURN_OFF;
+            default -> Command.SET_TEMPERATURE;
+        };
+        if ((command == Command.SET_TEMPERATURE) != (matcher.group(3) != null)) {
+            throw new IllegalArgumentException("Invalid action: " + action);
+        }
+        int value = matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3));
+        return new TriggerAction(command, Integer.parseInt(matcher.group(2)), value);
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
+
+// Trigger class to manage automation
+class Trigger {
+    private String condition;
+    private String action;
+    private Condition compiledCondition;
+    private TriggerAction compiledAction;
+    private final RuleStats stats = new RuleStats();
+
+    public Trigger(String condition, String action) {
+        this.condition = condition;
+        this.action = action;
+        this.compiledCondition = ConditionParser.parse(condition);
+        this.compiledAction = TriggerAction.parse(action);
+    }
+
+    public boolean evaluate(DeviceRegistry devices, int focus, DeviceAttribute changed) {
+        return compiledCondition.test(devices, focus, changed);
+    }
+
+    public Condition getCondition() {
+        return compiledCondition;
+    }
+
+    // The rule as written, for persisting it
+    public String getConditionText() {
+        return condition;
+    }
+
+    public String getActionText() {
+        return action;
+    }
+
+    public TriggerAction getAction() {
+        return compiledAction;
+    }
+
+    // Filled in by the hub that evaluates the rule
+    RuleStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "When " + condition + " then " + action;
+    }
+}
+
+// Rules indexed by the device and attribute they read, so a change only touches rules it can affect
+// List that only grows: appends are amortised O(1) instead of copying the whole list, and
+// readers see a consistent prefix without locking
+final class AppendOnlyList<T> extends AbstractList<T> implements RandomAccess {
+    private volatile Object[] elements = new Object[8];
+    private volatile int size;
+
+    // The element is in place before the new size is published
+    @Override
+    public synchronized boolean add(T element) {
+        Object[] current = elements;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            elements = current;
+        }
+        current[size] = element;
+        size = size + 1;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex(index, size);
+        return (T) elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
+
+// Adding a rule only appends to the lists it belongs in, so loading n rules is O(n); one writer
+// at a time, while readers look rules up concurrently
+class TriggerIndex {
+    private final Map<Long, List<Trigger>> byDevice = new ConcurrentHashMap<>();
+    private final Map<DeviceAttribute, List<Trigger>> byAttribute = new ConcurrentHashMap<>();
+
+    public void add(Trigger trigger) {
+        Set<Long> seen = new HashSet<>();
+        trigger.getCondition().collectDependencies((deviceId, attribute) -> {
+            if (seen.add(key(deviceId, attribute))) {
+                if (deviceId == Comparison.ANY_DEVICE) {
+                    byAttribute.computeIfAbsent(attribute, a -> new AppendOnlyList<>()).add(trigger);
+                } else {
+                    byDevice.computeIfAbsent(key(deviceId, attribute), k -> new AppendOnlyList<>()).add(trigger);
+                }
+            }
+        });
+    }
+
+    // Rules that read any attribute of this device, each listed once
+    public Collection<Trigger> candidates(SmartDevice device) {
+        Set<Trigger> candidates = new LinkedHashSet<>();
+        for (DeviceAttribute attribute : DeviceAttribute.values()) {
+            if (device.hasAttribute(attribute)) {
+                candidates.addAll(candidates(device.getId(), attribute));
+            }
+        }
+        return candidates;
+    }
+
+    public Collection<Trigger> candidates(int deviceId, DeviceAttribute attribute) {
+        List<Trigger> specific = byDevice.getOrDefault(key(deviceId, attribute), List.of());
+        List<Trigger> any = byAttribute.getOrDefault(attribute, List.of());
+        if (any.isEmpty()) {
+            return specific;
+        }
+        if (specific.isEmpty()) {
+            return any;
+        }
+        Set<Trigger> both = new LinkedHashSet<>(specific);
+        both.addAll(any);
+        return both;
+    }
+
+    private static long key(int deviceId, DeviceAttribute attribute) {
+        return ((long) deviceId << 8) | attribute.ordinal();
+    }
+}
+
+// Main class for Smart Home Simulation
+public class SmartHomeSimulation {
+    public static void main(String[] args) {
+        // Create the Smart Home Hub on a simulated clock starting at 05:30
+        SimulatedClock clock = new SimulatedClock(
+                LocalDate.of(2024, 1, 1).atTime(5, 30).atZone(ZoneId.systemDefault()).toInstant(),
+                ZoneId.systemDefault());
+        SmartHomeHub hub = new SmartHomeHub(clock);
+
+        // Add devices using the factory
+        SmartDevice light1 = SmartDeviceFactory.createDevice("light", 1);
+        SmartDevice thermostat = SmartDeviceFactory.createDevice("thermostat", 2);
+        SmartDevice door = SmartDeviceFactory.createDevice("door", 3);
+
+        // Add devices to the hub
+        hub.addDevice(light1);
+        hub.addDevice(thermostat);
+        hub.addDevice(door);
+
+        // Turn on a device
+        hub.turnOn(1);
+
+        // Schedule a task
+        hub.scheduleTask(2, "06:00", "Turn On");
+        hub.scheduleTask(1, "06:15", "Turn On");
+
+        // Add automation trigger
+        hub.addTrigger("temperature > 75", "turnOff(1)");
+
+        // Simulate trigger check
+        hub.checkTriggers();
+
+        // State changes now drive the rules directly
+        hub.setTemperature(2, 80);
+
+        // Whole-floor command in a single call
+        hub.tagDevice(1, "floor1");
+        hub.tagDevice(3, "floor1");
+        hub.turnOffGroup(DeviceGroup.tagged("floor1"));
+
+        // Fires when light 1 comes on, since thermostat 2 is already above 75
+        hub.addDevice(SmartDeviceFactory.createDevice("light", 4));
+        hub.addTrigger("temperature > 75 and device1.on == true", "turnOn(4)");
+
+        // Both thermostats fire "temperature > 75" in one group command; that is not a cycle
+        hub.addDevice(SmartDeviceFactory.createDevice("thermostat", 5));
+        hub.setTemperatureGroup(DeviceGroup.ofType("thermostat"), 78);
+
+        // Let an hour pass so the morning schedule runs
+        clock.advance(Duration.ofHours(1));
+        hub.runDueTasks();
+
+        // Display status report
+        hub.statusReport();
+    }
+}